@@ -0,0 +1,21 @@
+package nbody.jmh;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// JMH's usual command line, except that results are written as JSON (to jmh-result.json unless
+// -rff says otherwise) when -rf doesn't ask for another format, so runs from different versions
+// can be compared
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getResultFormat().hasValue() || options.shouldHelp() || options.shouldList()
+                || options.shouldListWithParams() || options.shouldListProfilers() || options.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(options).resultFormat(ResultFormatType.JSON).build()).run();
+    }
+}
@@ -0,0 +1,75 @@
+package nbody.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// BHBenchmark's timed suites under JMH, one benchmark per suite, body count, distribution and
+// THETA. The simulation lives in the default package, which Java code in a package can't
+// import, so the op comes from BHBenchmark.workload by reflection; only setup goes through it,
+// and each invocation is one plain interface call into the same code BHBenchmark times.
+//
+//   insert  tree build by insertion (Quad.insert)
+//   morton  parallel Morton-order tree build
+//   walk    per-body tree walk for every body (Quad.updateVelocityOf)
+//   group   one walk per group of nearby bodies
+//   refit   in-place refit after every body moves a little
+//   kernel  every body against the same 64 sources (BodyStore.updateVelocity)
+//   step    one full Simulation.step
+//
+// THETA only changes walk, group and step. The forks load the Vector API module, so the force
+// kernel is the vector one; -jvmArgs with no --add-modules measures the scalar one.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SuiteBenchmark {
+    @Param({"insert", "morton", "walk", "group", "refit", "kernel", "step"})
+    String suite;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int bodies;
+
+    @Param({"uniform", "disk", "clustered"})
+    String dist;
+
+    @Param({"0.2"})
+    double theta;
+
+    @Param({"0"})  // 0 for every processor
+    int threads;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        op = (LongSupplier) Class.forName("BHBenchmark")
+                .getMethod("workload", String.class, String.class, int.class, double.class, int.class)
+                .invoke(null, suite, dist, bodies, theta, threads);
+    }
+
+    // Returns the interactions the op counted, so JMH consumes the result
+    @Benchmark
+    public long run() {
+        return op.getAsLong();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) op).close();
+    }
+}
@@ -0,0 +1,50 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// InteractionList.accelerate on the JDK Vector API, a register's worth of interactions per
+// instruction. Kept out of src/ because it takes --add-modules jdk.incubator.vector to compile
+// as well as to run; InteractionList loads it by name when the module is there and keeps its
+// scalar loop otherwise. The lanes are summed separately and then added up, so results can
+// differ from the scalar loop's in the last bits.
+final class VectorKernel implements InteractionList.Kernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int lanes() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public void accelerate(InteractionList list, double x, double y, double epsSq) {
+        int size = list.size;
+        double[] mass = list.mass;
+        double[] xPos = list.xPos;
+        double[] yPos = list.yPos;
+        int bound = SPECIES.loopBound(size);
+        DoubleVector sx = DoubleVector.zero(SPECIES);
+        DoubleVector sy = DoubleVector.zero(SPECIES);
+        for (int k = 0; k < bound; k += SPECIES.length()) {
+            DoubleVector dx = DoubleVector.fromArray(SPECIES, xPos, k).sub(x);
+            DoubleVector dy = DoubleVector.fromArray(SPECIES, yPos, k).sub(y);
+            DoubleVector rSq = dx.mul(dx).add(dy.mul(dy));
+            DoubleVector f = DoubleVector.fromArray(SPECIES, mass, k).mul(Body.G)
+                    .div(rSq.add(epsSq).mul(rSq.add(InteractionList.TINY).sqrt()));
+            sx = sx.add(f.mul(dx));
+            sy = sy.add(f.mul(dy));
+        }
+        double ax = sx.reduceLanes(VectorOperators.ADD);
+        double ay = sy.reduceLanes(VectorOperators.ADD);
+        // What's left over after the last full register
+        for (int k = bound; k < size; k++) {
+            double dx = xPos[k] - x;
+            double dy = yPos[k] - y;
+            double rSq = dx * dx + dy * dy;
+            double f = Body.G * mass[k] / ((rSq + epsSq) * Math.sqrt(rSq + InteractionList.TINY));
+            ax += f * dx;
+            ay += f * dy;
+        }
+        list.ax = ax;
+        list.ay = ay;
+    }
+}
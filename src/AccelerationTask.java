@@ -0,0 +1,105 @@
+import java.util.concurrent.CountedCompleter;
+
+// Fork/join force evaluation for the leapfrog. Stores accelerations in the body store, either
+// for the bodies listed in active, walking the tree once per body, or for the bodies of the
+// tree's groups, walking once per group that has a body to evaluate. Positions are only read.
+// Like ForceTask, a task is run again through its PoolInvoker, reusing its subtasks.
+class AccelerationTask extends CountedCompleter<Void> {
+    private static final ThreadLocal<InteractionList> LISTS = ThreadLocal.withInitial(InteractionList::new);
+    private final BodyStore bodies;
+    private final Quad root;
+    private int[] active;  // Bodies to evaluate, or null for the tree's groups
+    private int[] mark;  // With groups, bodies to evaluate are marked with stamp; null for all
+    private int stamp;
+    private int from;
+    private int to;
+    private AccelerationTask left;
+    private AccelerationTask right;
+    private boolean split;  // Whether this run went to left and right
+    long interactions;  // Body-node interactions performed by this task and its subtasks
+    long nodeVisits;  // Quads their tree walks reached
+
+    // A task to be set with overBodies() or overGroups() before each run through parent
+    AccelerationTask(CountedCompleter<?> parent, BodyStore bodies, Quad root) {
+        super(parent);
+        this.bodies = bodies;
+        this.root = root;
+    }
+
+    // Readies this task to evaluate active[from] to active[to - 1]
+    AccelerationTask overBodies(int[] active, int from, int to) {
+        return range(active, null, 0, from, to);
+    }
+
+    // Readies this task to evaluate the bodies of groups from to to - 1 that are marked with
+    // stamp, or all of them if mark is null
+    AccelerationTask overGroups(int[] mark, int stamp, int from, int to) {
+        return range(null, mark, stamp, from, to);
+    }
+
+    private AccelerationTask range(int[] active, int[] mark, int stamp, int from, int to) {
+        reinitialize();
+        setPendingCount(0);
+        this.active = active;
+        this.mark = mark;
+        this.stamp = stamp;
+        this.from = from;
+        this.to = to;
+        split = false;
+        interactions = 0;
+        nodeVisits = 0;
+        return this;
+    }
+
+    @Override
+    public void compute() {
+        // Forks the right halves and carries on down the left ones in this thread
+        int chunk = active != null ? ForceTask.CHUNK : GroupForceTask.CHUNK;
+        AccelerationTask t = this;
+        while (t.to - t.from > chunk) {
+            int mid = (t.from + t.to) >>> 1;
+            if (t.left == null) {
+                t.left = new AccelerationTask(t, bodies, root);
+                t.right = new AccelerationTask(t, bodies, root);
+            }
+            t.split = true;
+            t.setPendingCount(1);
+            t.right.range(active, mark, stamp, mid, t.to).fork();
+            t = t.left.range(active, mark, stamp, t.from, mid);
+        }
+        InteractionList list = LISTS.get();
+        if (active != null) {
+            for (int k = t.from; k < t.to; k++) {
+                root.interactionsOf(active[k], list);
+                bodies.accelerate(active[k], root.walkX(active[k]), root.walkY(active[k]), list);
+                t.interactions += list.size;
+                t.nodeVisits += list.visits;
+            }
+        } else {
+            for (int g = t.from; g < t.to; g++) {
+                // Skip the walk for groups with nothing due
+                if (mark != null && !root.hasMarked(root.groups[g], mark, stamp)) {
+                    continue;
+                }
+                root.interactionsOfGroup(root.groups[g], list);
+                t.nodeVisits += list.visits;
+                for (int k = 0; k < list.memberCount; k++) {
+                    int i = list.members[k];
+                    if (mark == null || mark[i] == stamp) {
+                        bodies.accelerate(i, root.walkX(i), root.walkY(i), list);
+                        t.interactions += list.memberInteractions();
+                    }
+                }
+            }
+        }
+        t.tryComplete();
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+        if (split) {
+            interactions = left.interactions + right.interactions;
+            nodeVisits = left.nodeVisits + right.nodeVisits;
+        }
+    }
+}
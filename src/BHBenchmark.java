@@ -0,0 +1,839 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+// Benchmarks for the tree and force kernels, parameterized by body count, initial distribution,
+// THETA and leaf size. Prints a table and optionally writes the results as JSON for tracking regressions.
+//
+// Every run starts by checking the force kernel against the original atan2 formulation, on the
+// scalar path and, when the Vector API module is loaded, the vector one, and exits with status 1
+// if they disagree; --suite equivalence runs only that check. The fmm suite looks for the body count where the FMM
+// solver overtakes Barnes-Hut at equal force error, with Barnes-Hut at --bh-theta (Quad.THETA,
+// 0.2, unless set) whatever --theta says. The energy
+// suite runs both integrators for ENERGY_STEPS and compares energy drift and force evaluations.
+// The walk, group, step and energy suites run once for each --precision, so the mixed precision
+// walk can be weighed against the all-double one on throughput and energy drift. The generate
+// suite times every BodyGenerator layout and checks it against the same seed generated on one
+// thread, exiting with status 1 if any body differs. The alloc suite steps a simulation on
+// --threads threads at each --precision, and exits with status 1 if the steps allocate anything
+// once warmed up, summed over every thread. It passes once ALLOC_RUNS steps in a row allocate
+// nothing, within ALLOC_WARMUP_MAX steps of warm-up: HotSpot itself allocates a few kilobytes
+// on the running thread when it swaps in on-stack-replaced code, which can happen dozens of
+// steps in, while an allocation in the step would show up in every one.
+//
+// Usage: java BHBenchmark [--suite insert,morton,walk,group,refit,kernel,step,equivalence,fmm,energy,generate,alloc] [--bodies 1000,10000,...]
+//            [--dist uniform,disk,clustered] [--theta 0.2,0.5] [--leaf 1,8] [--precision double,mixed] [--threads n]
+//            [--bh-theta t] [--json file] [--label name]
+public class BHBenchmark {
+    // Suites that time one op over and over, and that the JMH benchmarks can run
+    private static final List<String> TIMED = List.of("insert", "morton", "walk", "group", "refit", "kernel", "step");
+    private static final String[] SUITES = {"insert", "morton", "walk", "group", "refit", "kernel", "step", "equivalence", "fmm", "energy", "generate", "alloc"};
+    private static final int[] FMM_ORDERS = {2, 4, 6, 8};
+    private static final double[] FMM_THETAS = {0.3, 0.5, 0.7};
+    private static final double REFIT_SHIFT = 0.1;  // Largest move per refit run, as a share of the mean leaf side
+    private static final int ENERGY_STEPS = 100;
+    private static final int KERNEL_SOURCES = 40;  // Most sources per list in the kernel check
+    private static final int ALLOC_RUNS = 10;  // Steps in a row that must allocate nothing
+    private static final int ALLOC_WARMUP_MAX = 200;  // Most steps spent waiting for the JIT to settle
+    private static final int ERROR_SAMPLE = 200;  // Bodies whose forces are checked against direct summation
+    private static final String[] DISTRIBUTIONS = {"uniform", "disk", "clustered"};
+    private static final long SEED = 42;
+    private static final int WARMUP = 3;
+    private static final int MIN_RUNS = 5;
+    private static final long MIN_NANOS = 1_000_000_000L;  // Keep measuring until this much time has passed
+
+    public static void main(String[] args) throws IOException {
+        String[] suites = {"insert", "morton"};
+        int[] sizes = {10_000, 100_000, 1_000_000};
+        String[] distributions = {"uniform"};
+        double[] thetas = {Quad.THETA};
+        double bhTheta = Quad.THETA;
+        int[] leafSizes = {Quad.LEAF_SIZE};
+        Simulation.Precision[] precisions = {Simulation.Precision.DOUBLE};
+        int threads = Runtime.getRuntime().availableProcessors();
+        String json = null;
+        String label = "";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--suite":
+                    suites = value.split(",");
+                    break;
+                case "--bodies":
+                    sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--dist":
+                    distributions = value.split(",");
+                    break;
+                case "--theta":
+                    thetas = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+                    break;
+                case "--bh-theta":
+                    bhTheta = Double.parseDouble(value);
+                    break;
+                case "--leaf":
+                    leafSizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--precision":
+                    precisions = Arrays.stream(value.split(",")).map(Simulation.Precision::parse).toArray(Simulation.Precision[]::new);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--json":
+                    json = value;
+                    break;
+                case "--label":
+                    label = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        for (String suite : suites) {
+            if (!Arrays.asList(SUITES).contains(suite)) {
+                throw new IllegalArgumentException("Unknown suite " + suite + ", expected one of " + String.join(", ", SUITES));
+            }
+        }
+
+        if (!checkKernel()) {
+            System.exit(1);
+        }
+        suites = Arrays.stream(suites).filter(suite -> !suite.equals("equivalence")).toArray(String[]::new);
+
+        List<Result> results = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        System.out.println("threads: " + threads + ", kernel: " + InteractionList.kernel());
+        if (Arrays.asList(suites).contains("fmm")) {
+            for (String dist : distributions) {
+                results.addAll(crossover(sizes, dist, bhTheta, pool));
+            }
+            suites = Arrays.stream(suites).filter(suite -> !suite.equals("fmm")).toArray(String[]::new);
+        }
+        if (Arrays.asList(suites).contains("generate")) {
+            List<Result> generated = generate(sizes, pool);
+            if (generated == null) {
+                System.exit(1);
+            }
+            results.addAll(generated);
+            suites = Arrays.stream(suites).filter(suite -> !suite.equals("generate")).toArray(String[]::new);
+        }
+        if (Arrays.asList(suites).contains("alloc")) {
+            List<Result> allocations = new ArrayList<>();
+            for (String dist : distributions) {
+                List<Result> measured = allocations(sizes, dist, precisions, threads);
+                if (measured == null) {
+                    System.exit(1);
+                }
+                allocations.addAll(measured);
+            }
+            results.addAll(allocations);
+            suites = Arrays.stream(suites).filter(suite -> !suite.equals("alloc")).toArray(String[]::new);
+        }
+        if (Arrays.asList(suites).contains("energy")) {
+            for (String dist : distributions) {
+                results.addAll(energy(sizes, dist, precisions, threads));
+            }
+            suites = Arrays.stream(suites).filter(suite -> !suite.equals("energy")).toArray(String[]::new);
+        }
+        if (suites.length > 0) {
+            System.out.printf("%-8s %10s %-10s %6s %5s %-6s %14s %12s %6s %10s%n",
+                    "suite", "bodies", "dist", "theta", "leaf", "prec", "mean ms", "stddev ms", "runs", "nodes");
+        }
+        for (String dist : distributions) {
+            for (int n : sizes) {
+                BodyStore bodies = distribution(dist, n);
+                for (double theta : thetas) {
+                    for (int leafSize : leafSizes) {
+                        for (Simulation.Precision precision : precisions) {
+                            for (String suite : suites) {
+                                // THETA and the precision only change the tree walk, and the leaf size only the tree
+                                boolean walks = suite.equals("walk") || suite.equals("group") || suite.equals("step");
+                                if ((theta != thetas[0] || precision != precisions[0]) && !walks) {
+                                    continue;
+                                }
+                                if (leafSize != leafSizes[0] && suite.equals("kernel")) {
+                                    continue;
+                                }
+                                Result r = run(suite, bodies, pool, theta, leafSize, walks ? precision : Simulation.Precision.DOUBLE);
+                                r.distribution = dist;
+                                r.threads = threads;
+                                results.add(r);
+                                System.out.printf("%-8s %10d %-10s %6.2f %5d %-6s %14.3f %12.3f %6d %10d%n", r.suite, r.bodies,
+                                        r.distribution, r.theta, r.leafSize, r.precision.name().toLowerCase(Locale.ROOT),
+                                        r.mean / 1e6, r.stddev / 1e6, r.runs, r.nodes);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+
+        if (json != null) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(json)), false, StandardCharsets.UTF_8)) {
+                writeJson(out, results, label);
+            }
+            System.out.println("wrote " + json);
+        }
+    }
+
+    private static Result run(String suite, BodyStore bodies, ForkJoinPool pool, double theta, int leafSize,
+            Simulation.Precision precision) {
+        Workload workload = workload(suite, bodies, pool, theta, leafSize, precision);
+        Result result = time(workload.op);
+        workload.close();
+        result.suite = suite;
+        result.bodies = bodies.size();
+        result.theta = theta;
+        result.leafSize = leafSize;
+        result.precision = precision;
+        result.nodes = workload.nodes();
+        return result;
+    }
+
+    // One run of suite on n bodies laid out by dist, on threads threads (0 for every processor),
+    // at the default leaf size and double precision. This is what the JMH benchmarks in jmh/
+    // time: they can't name classes in the default package, so they look this up by reflection
+    // and use the result as a LongSupplier and AutoCloseable
+    public static Workload workload(String suite, String dist, int n, double theta, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        Workload workload = workload(suite, distribution(dist, n), pool, theta, Quad.LEAF_SIZE, Simulation.Precision.DOUBLE);
+        workload.pool = pool;
+        return workload;
+    }
+
+    // Sets up suite on bodies and returns its op, ready to be timed
+    private static Workload workload(String suite, BodyStore bodies, ForkJoinPool pool, double theta, int leafSize,
+            Simulation.Precision precision) {
+        boolean mixed = precision == Simulation.Precision.MIXED;
+        Quad tree = new Quad(bodies);
+        tree.setTheta(theta);
+        tree.setLeafSize(leafSize);
+        MortonBuilder builder = new MortonBuilder(bodies, pool);
+        Workload workload = new Workload();
+        workload.tree = tree;
+        switch (suite) {
+            case "insert":
+                workload.op = () -> {
+                    insertBuild(bodies, tree);
+                    return 0;
+                };
+                break;
+            case "morton":
+                workload.op = () -> {
+                    builder.build(tree, BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+                    return 0;
+                };
+                break;
+            case "walk":
+                builder.build(tree, BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+                tree.setMixedPrecision(mixed);
+                InteractionList walkList = new InteractionList();
+                workload.op = () -> {
+                    long interactions = 0;
+                    for (int i = 0; i < bodies.size(); i++) {
+                        bodies.beginStep(i);
+                        interactions += tree.updateVelocityOf(i, walkList);
+                    }
+                    return interactions;
+                };
+                break;
+            case "group":
+                // Same work as walk, one walk per group of nearby bodies
+                builder.build(tree, BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+                tree.setMixedPrecision(mixed);
+                tree.findGroups(Quad.GROUP_SIZE);
+                InteractionList groupList = new InteractionList();
+                workload.op = () -> {
+                    long interactions = 0;
+                    for (int g = 0; g < tree.groupCount; g++) {
+                        tree.interactionsOfGroup(tree.groups[g], groupList);
+                        for (int k = 0; k < groupList.memberCount; k++) {
+                            int i = groupList.members[k];
+                            bodies.beginStep(i);
+                            bodies.updateVelocity(i, tree.walkX(i), tree.walkY(i), groupList);
+                        }
+                        interactions += (long) groupList.memberInteractions() * groupList.memberCount;
+                    }
+                    return interactions;
+                };
+                break;
+            case "refit":
+                // Every run nudges each body back or forth by up to REFIT_SHIFT of a leaf and refits the tree.
+                // The bodies moved are a copy, so the suites after this one see the layout unchanged
+                BodyStore moved = copyOf(bodies);
+                Quad refitTree = new Quad(moved);
+                refitTree.setTheta(theta);
+                refitTree.setLeafSize(leafSize);
+                new MortonBuilder(moved, pool).build(refitTree, BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+                double[] shift = new double[moved.size()];
+                double leafSide = BHMain.WIDTH * Math.sqrt((double) leafSize / moved.size());
+                Random rand = new Random(SEED);
+                for (int i = 0; i < shift.length; i++) {
+                    shift[i] = REFIT_SHIFT * leafSide * (2 * rand.nextDouble() - 1);
+                }
+                int[] sign = {1};
+                workload.op = () -> {
+                    for (int i = 0; i < shift.length; i++) {
+                        moved.xPos[i] += sign[0] * shift[i];
+                        moved.yPos[i] += sign[0] * shift[i];
+                    }
+                    sign[0] = -sign[0];
+                    if (refitTree.refit() == Quad.NONE) {
+                        throw new IllegalStateException("Refit failed");
+                    }
+                    return 0;
+                };
+                workload.tree = refitTree;
+                break;
+            case "kernel":
+                // One op is every body pulled towards the same 64 sources
+                InteractionList sources = new InteractionList();
+                for (int k = 0; k < 64; k++) {
+                    int j = (1 + k * 97) % bodies.size();
+                    sources.add(bodies.mass[j], bodies.xPos[j], bodies.yPos[j]);
+                }
+                workload.op = () -> {
+                    int n = bodies.size();
+                    for (int i = 0; i < n; i++) {
+                        bodies.beginStep(i);
+                        bodies.updateVelocity(i, sources);
+                    }
+                    return (long) n * sources.size;
+                };
+                break;
+            case "step":
+                // Steps a copy so every run starts from the same state
+                BodyStore copy = copyOf(bodies);
+                Simulation sim = new Simulation(copy, pool.getParallelism());
+                sim.setTheta(theta);
+                sim.setLeafSize(leafSize);
+                sim.setPrecision(precision);
+                workload.op = () -> {
+                    long before = sim.getInteractions();
+                    sim.step();
+                    return sim.getInteractions() - before;
+                };
+                workload.tree = sim.root;
+                workload.sim = sim;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown suite " + suite + ", expected one of " + String.join(", ", TIMED));
+        }
+        return workload;
+    }
+
+    // Compares the batched kernel with the original per-pair atan2/cos/sin formulation, summed
+    // over lists of 1 to KERNEL_SOURCES random sources so the vector path fills whole registers
+    // and leaves a tail. The error is taken relative to the sum of the pulls' magnitudes, since
+    // opposing pulls can cancel
+    private static boolean checkKernel() {
+        int lists = 100_000;
+        double tolerance = 1e-12;
+        Random rand = new Random(SEED);
+        InteractionList list = new InteractionList();
+        double worstScalar = 0;
+        double worstVector = 0;
+        long pairs = 0;
+        for (int l = 0; l < lists; l++) {
+            double x = BHMain.WIDTH * rand.nextDouble();
+            double y = BHMain.HEIGHT * rand.nextDouble();
+            double radius = 0.1 + 10 * rand.nextDouble();
+            double eps = Body.DAMP * radius;
+            double mass = Math.PI * radius * radius;
+            double ax = 0;
+            double ay = 0;
+            double scale = 0;
+            list.clear();
+            int sources = 1 + rand.nextInt(KERNEL_SOURCES);
+            for (int k = 0; k < sources; k++) {
+                double sourceX = BHMain.WIDTH * rand.nextDouble();
+                double sourceY = BHMain.HEIGHT * rand.nextDouble();
+                double sourceMass = 1e3 * rand.nextDouble();
+                list.add(sourceMass, sourceX, sourceY);
+
+                double dx = x - sourceX;
+                double dy = y - sourceY;
+                double F = -Body.G * mass * sourceMass / (dx * dx + dy * dy + eps * eps);
+                double angle = Math.atan2(dy, dx);
+                ax += F * Math.cos(angle) / mass;
+                ay += F * Math.sin(angle) / mass;
+                scale += Math.abs(F) / mass;
+            }
+            pairs += sources;
+
+            list.accelerateScalar(x, y, eps * eps);
+            worstScalar = Math.max(worstScalar, Math.hypot(list.ax - ax, list.ay - ay) / scale);
+            if (InteractionList.VECTOR) {
+                InteractionList.VECTOR_KERNEL.accelerate(list, x, y, eps * eps);
+                worstVector = Math.max(worstVector, Math.hypot(list.ax - ax, list.ay - ay) / scale);
+            }
+        }
+        boolean ok = worstScalar <= tolerance && worstVector <= tolerance;
+        System.out.printf("kernel equivalence: max relative error %.3e scalar, %s vector over %d pairs (tolerance %.0e) %s%n",
+                worstScalar, InteractionList.VECTOR ? String.format("%.3e", worstVector) : "no", pairs, tolerance,
+                ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    // Times Barnes-Hut and a grid of FMM orders and opening angles on the same tree, measures
+    // each one's RMS force error against direct summation, and reports the fastest FMM setting
+    // that is at least as accurate as Barnes-Hut
+    private static List<Result> crossover(int[] sizes, String dist, double bhTheta, ForkJoinPool pool) {
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%10s %-10s %12s %10s %12s %10s %-14s %8s%n",
+                "bodies", "dist", "bh ms", "bh error", "fmm ms", "fmm error", "fmm setting", "speedup");
+        int crossover = -1;
+        for (int n : sizes) {
+            int start = results.size();
+            BodyStore bodies = distribution(dist, n);
+            Quad tree = new Quad(bodies);
+            tree.setTheta(bhTheta);
+            new MortonBuilder(bodies, pool).build(tree, BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+
+            // Direct sums for the sample
+            int samples = Math.min(n, ERROR_SAMPLE);
+            double[] xRef = new double[samples];
+            double[] yRef = new double[samples];
+            InteractionList all = new InteractionList();
+            for (int j = 0; j < n; j++) {
+                all.add(bodies.mass[j], bodies.xPos[j], bodies.yPos[j]);
+            }
+            for (int k = 0; k < samples; k++) {
+                int i = (int) ((long) k * n / samples);
+                double eps = Body.DAMP * bodies.radius[i];
+                all.accelerate(bodies.xPos[i], bodies.yPos[i], eps * eps);
+                xRef[k] = all.ax;
+                yRef[k] = all.ay;
+            }
+
+            Result bh = time(() -> {
+                ForceTask task = new ForceTask(bodies, tree, 0, n);
+                pool.invoke(task);
+                return task.interactions;
+            });
+            InteractionList list = new InteractionList();
+            double[] xAcc = new double[samples];
+            double[] yAcc = new double[samples];
+            for (int k = 0; k < samples; k++) {
+                int i = (int) ((long) k * n / samples);
+                tree.interactionsOf(i, list);
+                double eps = Body.DAMP * bodies.radius[i];
+                list.accelerate(bodies.xPos[i], bodies.yPos[i], eps * eps);
+                xAcc[k] = list.ax;
+                yAcc[k] = list.ay;
+            }
+            bh.error = rmsError(xAcc, yAcc, xRef, yRef);
+            bh.suite = "bh-force";
+            bh.theta = bhTheta;
+            results.add(bh);
+
+            Result best = null;
+            for (int order : FMM_ORDERS) {
+                for (double theta : FMM_THETAS) {
+                    FmmSolver fmm = new FmmSolver(bodies, tree, pool, order);
+                    fmm.setTheta(theta);
+                    Result r = time(fmm::computeAccelerations);
+                    for (int k = 0; k < samples; k++) {
+                        int i = (int) ((long) k * n / samples);
+                        xAcc[k] = fmm.xAcc[i];
+                        yAcc[k] = fmm.yAcc[i];
+                    }
+                    r.error = rmsError(xAcc, yAcc, xRef, yRef);
+                    r.suite = "fmm-force";
+                    r.theta = theta;
+                    r.order = order;
+                    results.add(r);
+                    if (r.error <= bh.error && (best == null || r.mean < best.mean)) {
+                        best = r;
+                    }
+                }
+            }
+            for (Result r : results.subList(start, results.size())) {
+                r.bodies = n;
+                r.distribution = dist;
+                r.threads = pool.getParallelism();
+            }
+
+            if (best == null) {
+                System.out.printf("%10d %-10s %12.3f %10.2e %12s %10s %-14s %8s%n",
+                        n, dist, bh.mean / 1e6, bh.error, "-", "-", "none as accurate", "-");
+            } else {
+                System.out.printf("%10d %-10s %12.3f %10.2e %12.3f %10.2e %-14s %7.2fx%n",
+                        n, dist, bh.mean / 1e6, bh.error, best.mean / 1e6, best.error,
+                        "p=" + best.order + " theta=" + best.theta, bh.mean / best.mean);
+                if (crossover < 0 && best.mean < bh.mean) {
+                    crossover = n;
+                }
+            }
+        }
+        String against = "Barnes-Hut at theta " + bhTheta;
+        System.out.println(crossover > 0
+                ? "crossover (" + dist + "): FMM is faster than " + against + " at equal error from " + crossover + " bodies"
+                : "crossover (" + dist + "): FMM was not faster than " + against + " at equal error at any tested size");
+        return results;
+    }
+
+    // Runs each integrator at each precision for ENERGY_STEPS from the same start and reports the
+    // largest relative energy error seen, checked every tenth step, along with the force
+    // evaluations it took and the mean time of the force passes
+    private static List<Result> energy(int[] sizes, String dist, Simulation.Precision[] precisions, int threads) {
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%10s %-10s %-9s %-6s %12s %12s %14s %12s %12s%n",
+                "bodies", "dist", "integrator", "prec", "energy error", "evals/body", "sub-steps/DT", "ms/step", "force ms");
+        for (int n : sizes) {
+            for (Simulation.Integrator integrator : Simulation.Integrator.values()) {
+                for (Simulation.Precision precision : precisions) {
+                    BodyStore bodies = distribution(dist, n);
+                    Simulation sim = new Simulation(bodies, threads, Simulation.Solver.BARNES_HUT,
+                            FmmSolver.DEFAULT_ORDER, integrator);
+                    sim.setPrecision(precision);
+                    double e0 = sim.energy();
+                    double worst = 0;
+                    long nanos = 0;
+                    for (int k = 1; k <= ENERGY_STEPS; k++) {
+                        long start = System.nanoTime();
+                        sim.step();
+                        nanos += System.nanoTime() - start;
+                        if (k % 10 == 0) {
+                            worst = Math.max(worst, Math.abs(sim.energy() - e0) / Math.abs(e0));
+                        }
+                    }
+                    Result r = new Result();
+                    r.suite = "energy-" + integrator.name().toLowerCase(Locale.ROOT);
+                    r.bodies = n;
+                    r.distribution = dist;
+                    r.theta = Quad.THETA;
+                    r.precision = precision;
+                    r.threads = threads;
+                    r.runs = ENERGY_STEPS;
+                    r.mean = (double) nanos / ENERGY_STEPS;
+                    r.interactions = sim.getInteractions() / ENERGY_STEPS;
+                    r.error = worst;
+                    results.add(r);
+                    System.out.printf("%10d %-10s %-9s %-6s %12.3e %12.2f %14.2f %12.3f %12.3f%n", n, dist, integrator,
+                            precision.name().toLowerCase(Locale.ROOT), worst, (double) sim.getForceEvaluations() / sim.getBodySteps(),
+                            (double) sim.getSubSteps() / ENERGY_STEPS, r.mean / 1e6, sim.getMetrics().getForces().getMeanNanos() / 1e6);
+                    sim.shutdown();
+                }
+            }
+        }
+        return results;
+    }
+
+    // Times each layout's generation on pool, and compares the bodies with the same seed generated
+    // on one thread. Returns null if any differ
+    private static List<Result> generate(int[] sizes, ForkJoinPool pool) {
+        List<Result> results = new ArrayList<>();
+        ForkJoinPool single = new ForkJoinPool(1);
+        boolean identical = true;
+        System.out.printf("%-8s %10s %-10s %14s %12s %6s %12s %s%n", "suite", "bodies", "layout", "mean ms", "stddev ms", "runs",
+                "Mbodies/s", "same on 1 thread");
+        for (int n : sizes) {
+            BodyStore bodies = new BodyStore(n);
+            BodyStore reference = new BodyStore(n);
+            for (BodyGenerator.Layout layout : BodyGenerator.Layout.values()) {
+                Result r = time(() -> {
+                    bodies.clear();
+                    BodyGenerator.generate(bodies, layout, n, 1, BodyGenerator.SEED, pool);
+                });
+                reference.clear();
+                BodyGenerator.generate(reference, layout, n, 1, BodyGenerator.SEED, single);
+                boolean same = Arrays.equals(bodies.xPos, 0, n, reference.xPos, 0, n)
+                        && Arrays.equals(bodies.yPos, 0, n, reference.yPos, 0, n)
+                        && Arrays.equals(bodies.xVel, 0, n, reference.xVel, 0, n)
+                        && Arrays.equals(bodies.yVel, 0, n, reference.yVel, 0, n)
+                        && Arrays.equals(bodies.radius, 0, n, reference.radius, 0, n);
+                identical &= same;
+                r.suite = "generate";
+                r.bodies = n;
+                r.distribution = layout.label();
+                r.threads = pool.getParallelism();
+                results.add(r);
+                System.out.printf("%-8s %10d %-10s %14.3f %12.3f %6d %12.1f %s%n", r.suite, n, r.distribution, r.mean / 1e6,
+                        r.stddev / 1e6, r.runs, n / (r.mean / 1e9) / 1e6, same ? "yes" : "NO");
+            }
+        }
+        single.shutdown();
+        return identical ? results : null;
+    }
+
+    // Steps a simulation on threads threads and counts the bytes every thread allocates per step
+    // once warm: the stepping thread, the pool's workers and anything else running. Returns null
+    // if it never stopped allocating
+    private static List<Result> allocations(int[] sizes, String dist, Simulation.Precision[] precisions, int threads) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<Result> results = new ArrayList<>();
+        boolean allocationFree = true;
+        System.out.printf("%-8s %10s %-10s %-6s %7s %6s %14s %s%n", "suite", "bodies", "dist", "prec", "warm-up", "runs", "bytes/run",
+                "allocation free");
+        for (int n : sizes) {
+            for (Simulation.Precision precision : precisions) {
+                Simulation sim = new Simulation(distribution(dist, n), threads);
+                sim.setPrecision(precision);
+                sim.step();  // Starts the pool's workers, so they are among the threads counted
+                long[] ids = mx.getAllThreadIds();
+                // Runs until the last ALLOC_RUNS steps allocated nothing, or the warm-up allowance is spent
+                long[] last = new long[ALLOC_RUNS];
+                int runs = 0;
+                int clean = 0;
+                while (clean < ALLOC_RUNS && runs < ALLOC_WARMUP_MAX + ALLOC_RUNS) {
+                    long before = allocatedBytes(mx, ids);
+                    sim.step();
+                    long allocated = allocatedBytes(mx, ids) - before;
+                    last[runs++ % ALLOC_RUNS] = allocated;
+                    clean = allocated == 0 ? clean + 1 : 0;
+                }
+                sim.shutdown();
+                long bytes = Arrays.stream(last).sum();
+                int warmup = runs - ALLOC_RUNS;
+                allocationFree &= bytes == 0;
+                Result r = new Result();
+                r.suite = "alloc";
+                r.bodies = n;
+                r.distribution = dist;
+                r.theta = Quad.THETA;
+                r.precision = precision;
+                r.threads = threads;
+                r.runs = ALLOC_RUNS;
+                r.allocated = (double) bytes / ALLOC_RUNS;
+                results.add(r);
+                System.out.printf("%-8s %10d %-10s %-6s %7d %6d %14.1f %s%n", r.suite, n, dist, precision.name().toLowerCase(Locale.ROOT),
+                        warmup, r.runs, r.allocated, bytes == 0 ? "yes" : "NO");
+            }
+        }
+        return allocationFree ? results : null;
+    }
+
+    // Bytes allocated so far by the threads in ids, asked for one thread at a time: the array
+    // form allocates its result, which would count against the step
+    private static long allocatedBytes(com.sun.management.ThreadMXBean mx, long[] ids) {
+        long bytes = 0;
+        for (long id : ids) {
+            bytes += Math.max(0, mx.getThreadAllocatedBytes(id));  // -1 once a thread has exited
+        }
+        return bytes;
+    }
+
+    private static double rmsError(double[] x, double[] y, double[] xRef, double[] yRef) {
+        double err = 0;
+        double norm = 0;
+        for (int k = 0; k < x.length; k++) {
+            err += (x[k] - xRef[k]) * (x[k] - xRef[k]) + (y[k] - yRef[k]) * (y[k] - yRef[k]);
+            norm += xRef[k] * xRef[k] + yRef[k] * yRef[k];
+        }
+        return Math.sqrt(err / norm);
+    }
+
+    static void insertBuild(BodyStore bodies, Quad tree) {
+        tree.reset(BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+        for (int i = 0; i < bodies.size(); i++) {
+            tree.insert(i);
+        }
+        tree.computeCentersOfMass();
+    }
+
+    static BodyStore distribution(String name, int n) {
+        switch (name) {
+            case "uniform":
+                return randomBodies(n);
+            case "disk":
+                return diskBodies(n);
+            case "clustered":
+                return clusteredBodies(n);
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + name + ", expected one of " + String.join(", ", DISTRIBUTIONS));
+        }
+    }
+
+    // Same layout as the random preset, with a fixed seed
+    static BodyStore randomBodies(int n) {
+        double margin = 0.2;
+        Random rand = new Random(SEED);
+        BodyStore bodies = new BodyStore(n);
+        for (int i = 0; i < n; i++) {
+            double x = BHMain.WIDTH * (margin + (1 - 2 * margin) * rand.nextDouble());
+            double y = BHMain.HEIGHT * (margin + (1 - 2 * margin) * rand.nextDouble());
+            double vx = 1 * (y - (double) BHMain.HEIGHT / 2);
+            double vy = -1 * (x - (double) BHMain.WIDTH / 2);
+            bodies.add(x, y, vx, vy, 1);
+        }
+        return bodies;
+    }
+
+    // Rotating disk, denser towards the middle
+    static BodyStore diskBodies(int n) {
+        double scale = 0.1 * BHMain.WIDTH;
+        Random rand = new Random(SEED);
+        BodyStore bodies = new BodyStore(n);
+        for (int i = 0; i < n; i++) {
+            double r = Math.min(-scale * Math.log(1 - rand.nextDouble()), 0.45 * BHMain.WIDTH);
+            double angle = 2 * Math.PI * rand.nextDouble();
+            double x = BHMain.WIDTH / 2.0 + r * Math.cos(angle);
+            double y = BHMain.HEIGHT / 2.0 + r * Math.sin(angle);
+            double vx = 1 * (y - BHMain.HEIGHT / 2.0);
+            double vy = -1 * (x - BHMain.WIDTH / 2.0);
+            bodies.add(x, y, vx, vy, 1);
+        }
+        return bodies;
+    }
+
+    // A handful of tight Gaussian clumps scattered over the window
+    static BodyStore clusteredBodies(int n) {
+        int clusters = 8;
+        Random rand = new Random(SEED);
+        double[] cx = new double[clusters];
+        double[] cy = new double[clusters];
+        for (int c = 0; c < clusters; c++) {
+            cx[c] = BHMain.WIDTH * (0.2 + 0.6 * rand.nextDouble());
+            cy[c] = BHMain.HEIGHT * (0.2 + 0.6 * rand.nextDouble());
+        }
+        double spread = 0.02 * BHMain.WIDTH;
+        BodyStore bodies = new BodyStore(n);
+        for (int i = 0; i < n; i++) {
+            int c = rand.nextInt(clusters);
+            double x = cx[c] + spread * rand.nextGaussian();
+            double y = cy[c] + spread * rand.nextGaussian();
+            bodies.add(x, y, 0, 0, 1);
+        }
+        return bodies;
+    }
+
+    private static BodyStore copyOf(BodyStore bodies) {
+        BodyStore copy = new BodyStore(bodies.size());
+        for (int i = 0; i < bodies.size(); i++) {
+            copy.add(bodies.xPos[i], bodies.yPos[i], bodies.xVel[i], bodies.yVel[i], bodies.radius[i]);
+        }
+        return copy;
+    }
+
+    private static Result time(Runnable op) {
+        return time(() -> {
+            op.run();
+            return 0L;
+        });
+    }
+
+    // Runs op until both MIN_RUNS and MIN_NANOS are reached, after WARMUP unmeasured runs
+    private static Result time(Op op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        List<Long> times = new ArrayList<>();
+        long total = 0;
+        long interactions = 0;
+        while (times.size() < MIN_RUNS || total < MIN_NANOS) {
+            long start = System.nanoTime();
+            interactions += op.run();
+            long t = System.nanoTime() - start;
+            times.add(t);
+            total += t;
+        }
+        Result r = new Result();
+        r.runs = times.size();
+        r.mean = (double) total / r.runs;
+        double var = 0;
+        for (long t : times) {
+            var += (t - r.mean) * (t - r.mean);
+        }
+        r.stddev = Math.sqrt(var / r.runs);
+        r.interactions = interactions / r.runs;
+        return r;
+    }
+
+    private static void writeJson(PrintStream out, List<Result> results, String label) {
+        out.println("{");
+        out.printf(Locale.ROOT, "  \"label\": \"%s\",%n", label.replace("\\", "\\\\").replace("\"", "\\\""));
+        out.printf(Locale.ROOT, "  \"java\": \"%s\",%n", System.getProperty("java.version"));
+        out.printf(Locale.ROOT, "  \"timestamp\": %d,%n", System.currentTimeMillis());
+        out.println("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.printf(Locale.ROOT, "    {\"suite\": \"%s\", \"bodies\": %d, \"distribution\": \"%s\", \"theta\": %s, \"threads\": %d, "
+                            + "\"mean_ns\": %.1f, \"stddev_ns\": %.1f, \"runs\": %d, \"interactions\": %d%s}%s%n",
+                    r.suite, r.bodies, r.distribution, r.theta, r.threads, r.mean, r.stddev, r.runs, r.interactions,
+                    extras(r), i + 1 < results.size() ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static String extras(Result r) {
+        String s = ", \"precision\": \"" + r.precision.name().toLowerCase(Locale.ROOT) + "\"";
+        if (r.leafSize > 0) {
+            s += ", \"leaf_size\": " + r.leafSize + ", \"nodes\": " + r.nodes;
+        }
+        if (r.order > 0) {
+            s += ", \"order\": " + r.order;
+        }
+        if (!Double.isNaN(r.error)) {
+            String key = r.suite.startsWith("energy") ? "energy_error" : "force_error";
+            s += String.format(Locale.ROOT, ", \"%s\": %.4e", key, r.error);
+        }
+        if (!Double.isNaN(r.allocated)) {
+            s += String.format(Locale.ROOT, ", \"allocated_bytes\": %.1f", r.allocated);
+        }
+        return s;
+    }
+
+    // A suite's op and what it needs cleaning up. Each getAsLong is one run
+    static class Workload implements LongSupplier, AutoCloseable {
+        Op op;
+        Quad tree;  // Whichever tree the op builds or walks
+        Simulation sim;
+        ForkJoinPool pool;  // Set if the workload made its own
+
+        @Override
+        public long getAsLong() {
+            return op.run();
+        }
+
+        int nodes() {
+            return tree.nodeCount;
+        }
+
+        @Override
+        public void close() {
+            if (sim != null) {
+                sim.shutdown();
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private interface Op {
+        // Returns the interactions performed, or 0 if the op doesn't count them
+        long run();
+    }
+
+    private static class Result {
+        String suite;
+        int bodies;
+        String distribution;
+        double theta;
+        Simulation.Precision precision = Simulation.Precision.DOUBLE;
+        int threads;
+        double mean;  // Nanoseconds per run
+        double stddev;
+        int runs;
+        long interactions;  // Per run
+        int leafSize;
+        int nodes;  // Tree nodes after the last run, 0 for suites that do not build the tree
+        int order;  // FMM expansion order, 0 for other suites
+        double error = Double.NaN;  // RMS relative force error against direct summation, or energy error, if measured
+        double allocated = Double.NaN;  // Bytes allocated per run, if measured
+    }
+}
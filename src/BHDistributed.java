@@ -0,0 +1,308 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Runs the simulation split across several worker JVMs on this machine (see DistributedWorker),
+// once for each worker count, and checks the result against a single-process run of the same
+// bodies. Prints how far the distributed positions ended up from the single-process ones, and
+// the time per step, speedup and scaling efficiency for each worker count.
+// Usage: java BHDistributed [bodies] [steps] [--workers 1,2,4] [--threads n] [--rebalance steps] [--heap size] [--check on|off]
+public class BHDistributed {
+    static final long SEED = 42;
+    // Largest rms position difference from the single-process run, as a share of the rms
+    // distance the bodies moved, that still counts as a match. Both runs approximate the same
+    // forces with different trees, so they can't agree exactly
+    static final double TOLERANCE = 0.01;
+    private static final long CONNECT_TIMEOUT_MS = 60_000;
+
+    // One run's per worker figures, and the final state of every body by id
+    static class Run {
+        int workers;
+        long[] loopNanos;
+        long[] exchangeNanos;
+        long[] balanceNanos;
+        long[] lastWork;
+        int[] owned;
+        long ghosts;
+        long migrated;
+        long interactions;
+        double[] xPos;
+        double[] yPos;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        int n = 200_000;
+        int steps = 20;
+        int[] counts = {1, 2, 4};
+        int threads = 1;
+        int rebalance = 5;
+        String heap = null;
+        boolean check = true;
+        try {
+            List<String> positional = new ArrayList<>();
+            for (int a = 0; a < args.length; a++) {
+                switch (args[a]) {
+                    case "--workers":
+                        String[] list = args[++a].split(",");
+                        counts = new int[list.length];
+                        for (int k = 0; k < list.length; k++) {
+                            counts[k] = Integer.parseInt(list[k].trim());
+                        }
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++a]);
+                        break;
+                    case "--rebalance":
+                        rebalance = Integer.parseInt(args[++a]);
+                        break;
+                    case "--heap":
+                        heap = args[++a];
+                        break;
+                    case "--check":
+                        check = BHMain.parseSwitch(args[++a]);
+                        break;
+                    default:
+                        positional.add(args[a]);
+                }
+            }
+            if (positional.size() > 0) {
+                n = Integer.parseInt(positional.get(0));
+            }
+            if (positional.size() > 1) {
+                steps = Integer.parseInt(positional.get(1));
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            usage();
+            return;
+        }
+        for (int k : counts) {
+            if (k < 1) {
+                usage();
+                return;
+            }
+        }
+        if (n < 1 || steps < 1 || threads < 1 || rebalance < 1) {
+            usage();
+            return;
+        }
+
+        BodyStore reference = null;
+        BodyStore start = null;
+        if (check) {
+            start = bodies(n);
+            reference = bodies(n);
+            Simulation sim = new Simulation(reference, threads, Simulation.Solver.BARNES_HUT,
+                    FmmSolver.DEFAULT_ORDER, Simulation.Integrator.EULER);
+            long begin = System.nanoTime();
+            for (int s = 0; s < steps; s++) {
+                sim.step();
+            }
+            System.out.printf("single process: %.1f ms/step%n", (System.nanoTime() - begin) / 1e6 / steps);
+        }
+
+        System.out.printf("%d bodies, %d steps, %d thread(s) per worker, rebalance every %d steps%n", n, steps, threads, rebalance);
+        System.out.printf("%7s %10s %8s %10s %10s %9s %9s %10s %10s %11s %11s %s%n", "workers", "ms/step", "speedup",
+                "efficiency", "marginal", "imbalance", "exchange", "ghosts", "migrated", "rms error", "max error", "");
+        double moved = 0;
+        double first = 0;
+        double previous = 0;
+        int previousCount = 0;
+        for (int k : counts) {
+            Run run = launch(k, n, steps, threads, rebalance, heap);
+            long slowest = 0;
+            long exchange = 0;
+            long work = 0;
+            long maxWork = 0;
+            for (int r = 0; r < k; r++) {
+                slowest = Math.max(slowest, run.loopNanos[r]);
+                exchange += run.exchangeNanos[r] + run.balanceNanos[r];
+                work += run.lastWork[r];
+                maxWork = Math.max(maxWork, run.lastWork[r]);
+            }
+            double msPerStep = slowest / 1e6 / steps;
+            if (first == 0) {
+                // Times are relative to the first worker count, taken as one worker's worth
+                first = msPerStep * counts[0];
+            }
+            double speedup = first / msPerStep;
+            // Efficiency of the workers added since the previous count
+            String marginal = previousCount > 0 && k > previousCount
+                    ? String.format("%.2f", (previous / msPerStep - 1) / ((double) (k - previousCount) / previousCount)) : "-";
+            String errors = "";
+            String verdict = "";
+            if (check) {
+                double[] err = compare(start, reference, run);
+                errors = String.format("%11.3e %11.3e", err[0], err[1]);
+                moved = err[2];
+                verdict = err[0] <= TOLERANCE * err[2] ? "ok" : "MISMATCH";
+            }
+            System.out.printf("%7d %10.1f %8.2f %10.2f %10s %9.2f %8.1f%% %10d %10d %s %s%n", k, msPerStep, speedup,
+                    speedup / k, marginal, work > 0 ? maxWork * k / (double) work : 1, 100.0 * exchange / k / slowest,
+                    run.ghosts / k / steps, run.migrated, errors, verdict);
+            previous = msPerStep;
+            previousCount = k;
+        }
+        if (check) {
+            System.out.printf("errors are position differences from the single process run in pixels; ok means the rms error is within %.0f%% of the rms distance moved, %.3g%n",
+                    TOLERANCE * 100, moved);
+        }
+    }
+
+    // Body i of a run. Each body has its own random stream, so any worker can make any range of
+    // bodies and get the same ones. Same layout as the random preset
+    static void addBody(BodyStore bodies, long seed, int i) {
+        SplittableRandom rand = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + i);
+        double margin = 0.2;
+        double x = BHMain.WIDTH * (margin + (1 - 2 * margin) * rand.nextDouble());
+        double y = BHMain.HEIGHT * (margin + (1 - 2 * margin) * rand.nextDouble());
+        double vx = 1 * (y - (double) BHMain.HEIGHT / 2);
+        double vy = -1 * (x - (double) BHMain.WIDTH / 2);
+        bodies.add(x, y, vx, vy, 1);
+    }
+
+    static BodyStore bodies(int n) {
+        BodyStore bodies = new BodyStore(n);
+        for (int i = 0; i < n; i++) {
+            addBody(bodies, SEED, i);
+        }
+        return bodies;
+    }
+
+    // Rms and largest distance between the run's positions and the reference's, and the rms
+    // distance the reference bodies moved from start
+    private static double[] compare(BodyStore start, BodyStore reference, Run run) {
+        double sumSq = 0;
+        double max = 0;
+        double movedSq = 0;
+        for (int i = 0; i < reference.size(); i++) {
+            double dx = run.xPos[i] - reference.xPos[i];
+            double dy = run.yPos[i] - reference.yPos[i];
+            double d = Math.sqrt(dx * dx + dy * dy);
+            sumSq += d * d;
+            max = d > max || Double.isNaN(d) ? d : max;
+            double mx = reference.xPos[i] - start.xPos[i];
+            double my = reference.yPos[i] - start.yPos[i];
+            movedSq += mx * mx + my * my;
+        }
+        int n = reference.size();
+        return new double[] {Math.sqrt(sumSq / n), max, Math.sqrt(movedSq / n)};
+    }
+
+    // Starts workers JVMs, hands out ranks and ports, and gathers their results
+    static Run launch(int workers, int n, int steps, int threads, int rebalance, String heap) throws IOException, InterruptedException {
+        List<Process> processes = new ArrayList<>();
+        SocketChannel[] channels = new SocketChannel[workers];
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(PeerMesh.HOST, 0))) {
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int r = 0; r < workers; r++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                if (heap != null) {
+                    command.add("-Xmx" + heap);
+                }
+                if (InteractionList.VECTOR) {
+                    // Workers use the same force kernel as the launcher's reference run
+                    command.add("--add-modules");
+                    command.add("jdk.incubator.vector");
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("DistributedWorker");
+                command.add(Integer.toString(port));
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+
+            // Ranks go in the order workers connect; poll so a worker that dies can't hang us
+            server.configureBlocking(false);
+            int[] ports = new int[workers];
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            for (int r = 0; r < workers; ) {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    for (Process p : processes) {
+                        if (!p.isAlive()) {
+                            throw new IOException("A worker exited with status " + p.exitValue() + " before connecting");
+                        }
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("Workers did not connect within " + CONNECT_TIMEOUT_MS + " ms");
+                    }
+                    Thread.sleep(10);
+                    continue;
+                }
+                channel.configureBlocking(true);
+                channels[r] = channel;
+                ports[r] = PeerMesh.receive(channel).getInt();
+                r++;
+            }
+            for (int r = 0; r < workers; r++) {
+                ByteBuffer config = ByteBuffer.allocate(6 * 4 + 8 + 4 * workers).order(ByteOrder.LITTLE_ENDIAN);
+                config.putInt(r).putInt(workers).putInt(n).putInt(steps).putInt(threads).putInt(rebalance).putLong(SEED);
+                for (int p : ports) {
+                    config.putInt(p);
+                }
+                config.flip();
+                PeerMesh.send(channels[r], config);
+            }
+
+            Run run = new Run();
+            run.workers = workers;
+            run.loopNanos = new long[workers];
+            run.exchangeNanos = new long[workers];
+            run.balanceNanos = new long[workers];
+            run.lastWork = new long[workers];
+            run.owned = new int[workers];
+            run.xPos = new double[n];
+            run.yPos = new double[n];
+            for (int c = 0; c < workers; c++) {
+                ByteBuffer b = PeerMesh.receive(channels[c]);
+                int r = b.getInt();
+                int owned = b.getInt();
+                run.owned[r] = owned;
+                run.loopNanos[r] = b.getLong();
+                b.getLong();  // Tree
+                run.exchangeNanos[r] = b.getLong();
+                b.getLong();  // Forces
+                b.getLong();  // Integration
+                run.balanceNanos[r] = b.getLong();
+                run.interactions += b.getLong();
+                run.ghosts += b.getLong();
+                run.migrated += b.getLong();
+                run.lastWork[r] = b.getLong();
+                for (int i = 0; i < owned; i++) {
+                    int id = b.getInt();
+                    run.xPos[id] = b.getDouble();
+                    run.yPos[id] = b.getDouble();
+                    b.getDouble();
+                    b.getDouble();
+                }
+            }
+            for (Process p : processes) {
+                p.waitFor();
+            }
+            return run;
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            for (Process p : processes) {
+                p.destroy();
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java BHDistributed [bodies] [steps] [--workers 1,2,4] [--threads n] [--rebalance steps] [--heap size] [--check on|off]");
+    }
+}
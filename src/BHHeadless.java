@@ -0,0 +1,98 @@
+import java.util.concurrent.ForkJoinPool;
+
+// Runs the simulation flat out with no window, for large batch runs and regression timing.
+// Usage: java BHHeadless [bodies] [preset] [steps] [threads] [bh|fmm] [fmm order] [euler|leapfrog] [merge|pass] [double|mixed] [seed]
+public class BHHeadless {
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int n;
+        String preset;
+        int steps;
+        int threads;
+        Simulation.Solver solver;
+        int order;
+        Simulation.Integrator integrator;
+        boolean collisions;
+        Simulation.Precision precision;
+        long seed;
+        try {
+            n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+            preset = args.length > 1 ? args[1] : "random";
+            steps = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+            threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            solver = args.length > 4 ? Simulation.Solver.parse(args[4]) : Simulation.Solver.BARNES_HUT;
+            order = args.length > 5 ? Integer.parseInt(args[5]) : FmmSolver.DEFAULT_ORDER;
+            integrator = args.length > 6 ? Simulation.Integrator.parse(args[6]) : Simulation.Integrator.EULER;
+            collisions = args.length > 7 ? parseCollisions(args[7]) : Simulation.COLLISIONS;
+            precision = args.length > 8 ? Simulation.Precision.parse(args[8]) : Simulation.PRECISION;
+            seed = args.length > 9 ? Long.parseLong(args[9]) : BodyGenerator.SEED;
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            usage();
+            return;
+        }
+        if (n < 1 || steps < 1 || threads < 1 || order < 1 || order > FmmSolver.MAX_ORDER) {
+            usage();
+            return;
+        }
+
+        BodyStore bodies = new BodyStore(n);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long generateStart = System.nanoTime();
+        try {
+            InitialConditions.addPreset(bodies, preset, n, 1, seed, pool);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        double generateSeconds = (System.nanoTime() - generateStart) / 1e9;
+
+        Simulation sim = new Simulation(bodies, threads, solver, order, integrator);
+        sim.setCollisions(collisions);
+        sim.setPrecision(precision);
+        System.out.println("bodies: " + bodies.size() + " | preset: " + preset + " | steps: " + steps + " | threads: " + threads
+                + " | solver: " + solver + (solver == Simulation.Solver.FMM ? " (order " + order + ")" : "")
+                + " | integrator: " + integrator + " | collisions: " + (collisions ? "merge" : "pass") + " | precision: " + precision
+                + " | seed: " + seed);
+        System.out.printf("generated in: %.3f s%n", generateSeconds);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            sim.step();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sim.shutdown();
+
+        System.out.printf("wall time: %.3f s%n", seconds);
+        System.out.printf("steps/s: %.3f%n", steps / seconds);
+        System.out.printf("interactions/s: %.4e%n", sim.getInteractions() / seconds);
+        System.out.println("tree rebuilds: " + sim.getRebuilds() + " (refitted otherwise)");
+        System.out.printf("force evaluations per body per step: %.2f over %.2f sub-steps%n",
+                (double) sim.getForceEvaluations() / sim.getBodySteps(), (double) sim.getSubSteps() / steps);
+        if (collisions) {
+            System.out.println("merged: " + sim.getMerged() + " bodies, " + bodies.size() + " left");
+        }
+        System.out.println("phases: " + sim.getMetrics().logLine());
+    }
+
+    private static boolean parseCollisions(String value) {
+        switch (value.toLowerCase()) {
+            case "merge":
+                return true;
+            case "pass":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown collision mode: " + value);
+        }
+    }
+
+    // Exits with status 2 after printing, so a script or batch job sees the bad argument
+    private static void usage() {
+        System.err.println("Usage: java BHHeadless [bodies] [preset] [steps] [threads] [bh|fmm] [fmm order] [euler|leapfrog] [merge|pass] [double|mixed] [seed]");
+        System.err.println("  presets: " + String.join(", ", InitialConditions.PRESETS));
+        System.exit(2);
+    }
+}
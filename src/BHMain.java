@@ -1,150 +1,353 @@
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Random;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import java.awt.Color;
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.util.List;
+import javax.swing.AbstractAction;
+import javax.swing.JButton;
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.KeyStroke;
 import javax.swing.Timer;
 
 public class BHMain {
-    public static final boolean DRAW_QUADS = true;
+    public static final boolean DRAW_QUADS = true;  // Whether the quad overlay starts on; Q toggles it
+    public static final double MIN_QUAD_PIXELS = 4;  // Smaller quads are left out of the overlay
     public static final int DT = 10;
+    public static final int FRAME_MS = 16;  // Repaint interval, independent of the physics timestep
     public static final int WIDTH = 800;
     public static final int HEIGHT = WIDTH;
-    ArrayList<Body> bodies = new ArrayList<>();
+    public static final int CHECKPOINT_EVERY = 1000;  // Default steps between checkpoints
+    public static final int RECORD_QUEUE = 16;  // Default frames waiting for the trajectory writer
+    public static final double REPLAY_RADIUS = 1;  // Trajectories don't hold radii
+    public static final double MAX_REPLAY_SPEED = 1024;
+    final BodyStore bodies;  // Null when replaying
     final JFrame frame;
-    final ExecutorService executorService;
-    private Quad root;
+    private final RenderStage render;  // Rasterizes snapshots off the event thread
+    private RasterRenderer.Mode renderMode = RasterRenderer.Mode.SPLAT;  // Only touched on the event thread
+    private RasterRenderer.ColourMap colourMap = RasterRenderer.ColourMap.DENSITY;
+    private boolean drawQuads = DRAW_QUADS;
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+    private final Simulation simulation;  // Null when replaying
+    private final SimulationLoop loop;  // Exactly one of loop and replay is set
+    private final ReplayLoop replay;
+    private final JSlider slider;
+    private boolean movingSlider;  // Set while the timer moves the slider, so it isn't taken as a seek
     private final MyPanel panel;
-    private long time;
+    private volatile TrajectoryRecorder recorder;
+    private final StepMetrics metrics;
+    private long time;  // When the last frame was shown, in nanoseconds
+    private long shownStep;  // Step and body count of the frame last painted, for the title
+    private int shownSize;
 
     // Called by BHSimulationGUI
-    public BHMain(ArrayList<Body> bodies) {
+    public BHMain(BodyStore bodies) {
+        this(bodies, 1, Simulation.Solver.BARNES_HUT);
+    }
+
+    public BHMain(BodyStore bodies, int stepsPerFrame, Simulation.Solver solver) {
+        this(bodies, stepsPerFrame, solver, 0);
+    }
+
+    // Starts counting steps from startStep, for runs resumed from a checkpoint
+    public BHMain(BodyStore bodies, int stepsPerFrame, Simulation.Solver solver, long startStep) {
         this.bodies = bodies;
         panel = new MyPanel();
         panel.setPreferredSize(new Dimension(WIDTH, HEIGHT));
         frame = new JFrame();
         frame.add(panel);
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.pack();
-        frame.setVisible(true);
-        time = System.currentTimeMillis();
-
-        buildBHTree();
-
-        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        bindRenderKeys();
 
-        Timer timer = new Timer(DT, new TimerListener());
-        timer.start();
+        Simulation sim = new Simulation(bodies, Runtime.getRuntime().availableProcessors(), solver, FmmSolver.DEFAULT_ORDER);
+        sim.setSteps(startStep);
+        metrics = sim.getMetrics();
+        metrics.register();
+        render = new RenderStage(snapshots, new ForkJoinPool(Runtime.getRuntime().availableProcessors()), metrics);
+        simulation = sim;
+        loop = new SimulationLoop(sim, snapshots, stepsPerFrame, DRAW_QUADS);
+        replay = null;
+        slider = null;
     }
 
-    // For running on its own
-    public BHMain(int n, int m) {
+    // Replays a trajectory recorded with --record instead of simulating. Space pauses, the
+    // arrow keys step a frame or double and halve the speed, R reverses, and the slider scrubs
+    public BHMain(TrajectoryReader reader) {
+        bodies = null;
         panel = new MyPanel();
-        panel.setSize(new Dimension(WIDTH, HEIGHT));
+        panel.setPreferredSize(new Dimension(WIDTH, HEIGHT));
         frame = new JFrame();
         frame.add(panel);
+        bindRenderKeys();
+
+        metrics = new StepMetrics();  // Only the render and frame phases
+        metrics.register();
+        render = new RenderStage(snapshots, new ForkJoinPool(Runtime.getRuntime().availableProcessors()), metrics);
+        simulation = null;
+        loop = null;
+        replay = new ReplayLoop(reader, snapshots, REPLAY_RADIUS);
+        slider = new JSlider(0, Math.max(0, reader.getFrameCount() - 1), 0);
+        slider.addChangeListener(e -> {
+            if (!movingSlider) {
+                replay.seek(slider.getValue());
+            }
+        });
+        JButton pause = new JButton("Play/Pause");
+        pause.addActionListener(e -> replay.togglePause());
+        pause.setFocusable(false);
+        slider.setFocusable(false);
+        JPanel controls = new JPanel(new BorderLayout());
+        controls.add(pause, BorderLayout.WEST);
+        controls.add(slider, BorderLayout.CENTER);
+        frame.add(controls, BorderLayout.SOUTH);
+        bindKey("SPACE", replay::togglePause);
+        bindKey("LEFT", () -> replay.stepBy(-1));
+        bindKey("RIGHT", () -> replay.stepBy(1));
+        bindKey("UP", () -> replay.setSpeed(Math.min(MAX_REPLAY_SPEED, 2 * replay.getSpeed())));
+        bindKey("DOWN", () -> replay.setSpeed(replay.getSpeed() / 2));
+        bindKey("R", () -> replay.setSpeed(-replay.getSpeed()));
+    }
+
+    // Starts the simulation or replay thread and shows the window. Not done by the constructors,
+    // so that main can set up recording and the rest before the first step
+    public void start() {
+        if (loop != null) {
+            loop.start();
+        } else {
+            replay.start();
+        }
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.pack();
+        render.setSize(panel.getWidth(), panel.getHeight());
+        render.setStyle(renderMode, colourMap, drawQuads);
+        render.start();
+        time = System.nanoTime();
         frame.setVisible(true);
-        time = System.currentTimeMillis();
-
-        addRandomBodies(n, m);
-        buildBHTree();
-
-        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        Timer myTimer = new Timer(DT, new TimerListener());
-        myTimer.start();
+        Timer timer = new Timer(FRAME_MS, new TimerListener());
+        timer.start();
     }
 
-    public static void main(String[] args) {
-        BHMain sim = new BHMain(5000, 1);
+    // M switches between points and splats, C between density and velocity colouring, and Q
+    // turns the quad overlay on and off
+    private void bindRenderKeys() {
+        bindKey("M", () -> {
+            renderMode = renderMode.next();
+            render.setStyle(renderMode, colourMap, drawQuads);
+        });
+        bindKey("C", () -> {
+            colourMap = colourMap.next();
+            render.setStyle(renderMode, colourMap, drawQuads);
+        });
+        bindKey("Q", () -> {
+            drawQuads = !drawQuads;
+            render.setStyle(renderMode, colourMap, drawQuads);
+            if (loop != null) {
+                loop.setDrawQuads(drawQuads);
+            }
+        });
     }
 
-    private void addRandomBodies(int n, float m) {
-        double margin = 0.2;
-        Random rand = new Random();
-        for (int i = 0; i < n; i++) {
-            double x = HEIGHT * (margin + (1 - 2 * margin) * rand.nextFloat());
-            double y = WIDTH * (margin + (1 - 2 * margin) * rand.nextFloat());
-            double vx = 1 * (y - (double) HEIGHT / 2);
-            double vy = -1 * (x - (double) WIDTH / 2);
-            //if(rand.nextBoolean()){m*=-1;}
-            Body p = new Body((int) x, (int) y, vx, vy, m);
-            bodies.add(p);
-        }
+    private void bindKey(String key, Runnable action) {
+        panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(key), key);
+        panel.getActionMap().put(key, new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
     }
 
-    private void addCircleBodies(int n, float m) {
-        double r = 0.4 * WIDTH;
-        for (int i = 0; i < n; i++) {
-            double x = (double) WIDTH / 2 + r * Math.cos(2 * Math.PI * i / n);
-            double y = (double) HEIGHT / 2 + r * Math.sin(2 * Math.PI * i / n);
-            double vx = 1 * (y - HEIGHT / 2.0) * 0.5;
-            double vy = -1 * (x - WIDTH / 2.0) * 0.5;
-            vx = 0;
-            vy = 0;
-
-            Body p = new Body((int) x, (int) y, vx, vy, m);
-            bodies.add(p);
+    // Usage: java BHMain [bodies] [steps per frame] [bh|fmm] [--checkpoint file] [--every steps] [--restart file]
+    //     [--record file] [--record-every steps] [--record-encoding double|float|delta]
+    //     [--record-policy drop|block] [--record-queue frames] [--collisions on|off]
+    //     [--precision double|mixed] [--preset name] [--seed n]
+    //        java BHMain --replay file
+    // Either form takes [--metrics-log seconds] to print the step metrics every so often
+    // With --restart the bodies come from the checkpoint file instead of being generated
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        Path checkpoint = null;
+        int every = CHECKPOINT_EVERY;
+        Path restart = null;
+        Path record = null;
+        int recordEvery = 1;
+        TrajectoryRecorder.Encoding encoding = TrajectoryRecorder.Encoding.DELTA;
+        TrajectoryRecorder.Policy policy = TrajectoryRecorder.Policy.DROP;
+        int recordQueue = RECORD_QUEUE;
+        Path replay = null;
+        int metricsLog = 0;
+        boolean collisions = Simulation.COLLISIONS;
+        Simulation.Precision precision = Simulation.PRECISION;
+        String preset = "random";
+        long seed = BodyGenerator.SEED;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            switch (args[i]) {
+                case "--checkpoint":
+                    checkpoint = Paths.get(args[++i]);
+                    break;
+                case "--every":
+                    every = Integer.parseInt(args[++i]);
+                    break;
+                case "--restart":
+                    restart = Paths.get(args[++i]);
+                    break;
+                case "--metrics-log":
+                    metricsLog = Integer.parseInt(args[++i]);
+                    break;
+                case "--collisions":
+                    collisions = parseSwitch(args[++i]);
+                    break;
+                case "--precision":
+                    precision = Simulation.Precision.parse(args[++i]);
+                    break;
+                case "--preset":
+                    preset = args[++i];
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--replay":
+                    replay = Paths.get(args[++i]);
+                    break;
+                case "--record":
+                    record = Paths.get(args[++i]);
+                    break;
+                case "--record-every":
+                    recordEvery = Integer.parseInt(args[++i]);
+                    break;
+                case "--record-encoding":
+                    encoding = TrajectoryRecorder.Encoding.parse(args[++i]);
+                    break;
+                case "--record-policy":
+                    policy = TrajectoryRecorder.Policy.parse(args[++i]);
+                    break;
+                case "--record-queue":
+                    recordQueue = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    positional.add(args[i]);
+            }
         }
-    }
+        if (replay != null) {
+            BHMain viewer = new BHMain(new TrajectoryReader(replay));
+            viewer.logMetrics(metricsLog);
+            viewer.start();
+            return;
+        }
+        int n = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 5000;
+        int stepsPerFrame = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 1;
+        Simulation.Solver solver = positional.size() > 2 ? Simulation.Solver.parse(positional.get(2)) : Simulation.Solver.BARNES_HUT;
 
-    private void addSolarSystem(int n, float m) {
-        double r = 0.4 * WIDTH;
-        Body star = new Body(WIDTH / 2.0, HEIGHT / 2.0, 0, 0, 10);
-        bodies.add(star);
-        for (int i = 1; i <= n; i++) {
-            double x = WIDTH / 2.0 + r * i / n;
-            double y = HEIGHT / 2.0;
-            double vx = 2 * (y - HEIGHT / 2.0);
-            double vy = -2 * (x - WIDTH / 2.0);
-
-            Body p = new Body((int) x, (int) y, vx, vy, m);
-            bodies.add(p);
+        BHMain sim;
+        if (restart != null) {
+            BodyStore bodies = new BodyStore();
+            Checkpoint resumed = Checkpoint.read(restart, bodies);
+            if (resumed.dt != Body.DT) {
+                System.err.println("Warning: " + restart + " was written with a timestep of " + resumed.dt
+                        + " s, now stepping by " + Body.DT + " s");
+            }
+            sim = new BHMain(bodies, stepsPerFrame, solver, resumed.steps);
+        } else {
+            BodyStore bodies = new BodyStore(n);
+            InitialConditions.addPreset(bodies, preset, n, 1, seed, ForkJoinPool.commonPool());
+            sim = new BHMain(bodies, stepsPerFrame, solver);
+        }
+        if (checkpoint != null) {
+            sim.loop.setCheckpoint(checkpoint, every);
+        }
+        sim.loop.setCollisions(collisions);
+        sim.simulation.setPrecision(precision);
+        if (record != null) {
+            TrajectoryRecorder recorder = new TrajectoryRecorder(record, recordEvery, encoding, policy, recordQueue);
+            recorder.setGauge(sim.metrics.stage("record", recordQueue));
+            sim.recorder = recorder;
+            sim.loop.setRecorder(recorder);
+            // Write out whatever is still queued when the window closes
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                sim.loop.setRecorder(null);
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    System.err.println("Trajectory recording failed: " + e.getMessage());
+                }
+            }));
         }
+        sim.start();
+        sim.logMetrics(metricsLog);
     }
 
-    void buildBHTree() {
-        root = new Quad(WIDTH / 2.0, HEIGHT / 2.0, WIDTH, 0);
-        for (Body b : bodies) {
-            root.insert(b);
+    static boolean parseSwitch(String value) {
+        switch (value.toLowerCase()) {
+            case "on":
+                return true;
+            case "off":
+                return false;
+            default:
+                throw new IllegalArgumentException("Expected on or off, got " + value);
         }
     }
 
-    void update() {
-        for (Body b : bodies) {
-            b.updatePosition();
-            root.updateVelocityOf(b);
+    // Prints a metrics line every seconds seconds on a daemon thread, or never if seconds is 0
+    private void logMetrics(int seconds) {
+        if (seconds <= 0) {
+            return;
         }
-        buildBHTree();
+        ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.println(metrics.logLine()), seconds, seconds, TimeUnit.SECONDS);
     }
 
+    // Frames per second from the time since the last frame, which also goes into the metrics
     int calcFrameRate() {
-        long newTime = System.currentTimeMillis();
-        long fps = 1000 / (newTime - time);
-        time = newTime;
-        return Math.round(fps);
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - time);
+        time = now;
+        metrics.record(StepMetrics.Phase.FRAME, elapsed);
+        return (int) Math.round(1e9 / elapsed);
     }
 
+    // Repaints at the display rate; the physics runs on its own thread
     private class TimerListener implements ActionListener {
         public void actionPerformed(ActionEvent e) {
-            update();
             frame.repaint();
             int fps = calcFrameRate();
-            frame.setTitle("Body Simulation | " + fps + " fps | " + bodies.size() + " bodies");
+            String title;
+            if (replay == null) {
+                title = "Body Simulation | " + fps + " fps | step " + shownStep + " | " + shownSize + " bodies";
+            } else {
+                int shown = replay.getShownFrame();
+                title = "Replay | " + fps + " fps | frame " + (shown + 1) + "/" + replay.getFrameCount() + " | step "
+                        + shownStep + " | " + shownSize + " bodies | " + (replay.isPaused() ? "paused" : "speed " + replay.getSpeed());
+                if (shown >= 0 && !slider.getValueIsAdjusting()) {
+                    movingSlider = true;
+                    slider.setValue(shown);
+                    movingSlider = false;
+                }
+            }
+            title += " | " + renderMode.name().toLowerCase() + ", " + colourMap.name().toLowerCase();
+            TrajectoryRecorder trajectory = recorder;
+            if (trajectory != null) {
+                title += String.format(" | recorded %.1f MB, queue %d, dropped %d",
+                        trajectory.getBytesWritten() / 1e6, trajectory.getQueueDepth(), trajectory.getFramesDropped());
+            }
+            frame.setTitle(title);
         }
     }
 
@@ -152,40 +355,19 @@ public class BHMain {
         public void paintComponent(Graphics g) {
             super.paintComponent(g);
             Graphics2D g2d = (Graphics2D) g;
+            render.setSize(getWidth(), getHeight());
 
-            g2d.setBackground(Color.BLACK);
-            g2d.clearRect(0, 0, getWidth(), getHeight());
-            
-            if (DRAW_QUADS) {
-                g2d.setColor(Color.GRAY);
-                root.drawAll(g2d);
-            }
-
-            g2d.scale(1, -1);
-            g2d.translate(0, -getHeight());
-
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            //g2d.setColor(Color.WHITE);
-
-            // Draw all Bodies in Body array using parallel streams
-            try {
-                List<Callable<Void>> drawTasks = bodies.stream().map(body -> (Callable<Void>) () -> {
-                    body.drawBody(g2d);
-                    return null;
-                }).collect(Collectors.toList());
-                executorService.invokeAll(drawTasks);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            // The render stage has already rasterized bodies and the quad overlay into one
+            // image, so all that's left here is a single blit
+            RenderStage.Frame latest = render.acquire();
+            shownStep = latest.step;
+            shownSize = latest.size;
+            if (latest.image != null) {
+                StageGauge display = render.displayGauge();
+                display.begin();
+                g2d.drawImage(latest.image, 0, 0, null);
+                display.end();
             }
-            // Disabled parallel streams because colouring negative mass bodies is not thread safe--it causes flickering due to global colour when drawing
-
-            // for (Body b : bodies) {
-            //     double vel = (b.xVel * b.xVel + b.yVel * b.yVel);
-
-            //     b.drawBody(g2d);
-            // }
-
         }
     }
 }
@@ -7,30 +7,31 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.ArrayList;
-import java.util.Random;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.DefaultCellEditor;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.SwingUtilities;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
 
 public class BHSimulationGUI {
     private JFrame frame;
-    private DefaultTableModel tableModel;
+    private BodyTableModel tableModel;
     private BHMain simulation;
     private DrawingPanel drawingPanel;
-    private ArrayList<Body> planetArray;
+    private BodyStore planetArray;
     private final int HEIGHT = BHMain.HEIGHT;
     private final int WIDTH = BHMain.WIDTH;
+    private static final int ANTIALIAS_LIMIT = 10000;  // Bodies drawn with smooth edges in the editor
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new BHSimulationGUI().createAndShowGUI());
@@ -40,9 +41,9 @@ public class BHSimulationGUI {
         frame = new JFrame("Barnes-Hut Simulation");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        JPanel controlPanel = createControlPanel();
+        planetArray = new BodyStore();
         drawingPanel = new DrawingPanel();
-        planetArray = new ArrayList<>();
+        JPanel controlPanel = createControlPanel();
 
         frame.getContentPane().add(controlPanel, BorderLayout.WEST);
         frame.getContentPane().add(drawingPanel, BorderLayout.EAST);
@@ -79,49 +80,20 @@ public class BHSimulationGUI {
             initializePreset(n + 1);
         });
         presetPanel.add(clearPresetButton);
-
-        tableModel = new DefaultTableModel(new Object[]{"Mass", "Velocity X", "Velocity Y", "Position X", "Position Y", "Delete"}, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                // Make all cells editable
-                return true;
-            }
-        };
-
-        tableModel.addTableModelListener(e -> {
-            try {
-                int row = e.getFirstRow();
-                int column = e.getColumn();
-                if (column == 5) {
-                    deletePlanet(row);
-                    drawingPanel.repaint();
-                } else {
-                    Object data = tableModel.getValueAt(row, column);
-                    try {
-                        double value = Double.parseDouble(data.toString());
-                    } catch (NumberFormatException exception) {
-                        JOptionPane.showMessageDialog(frame, "Invalid input. Please enter numeric values.");
-                        tableModel.setValueAt(0.0, row, column);
-                        return;
-                    }
-                    updateSimulationData(row, column, data);
-                    drawingPanel.repaint();
-                }
-            } catch (ArrayIndexOutOfBoundsException exception) {
-                // Do nothing--errors are from some stupid idiotic swing bug
-            }
-        });
+        JButton replayButton = new JButton("Replay...");
+        replayButton.addActionListener(e -> replayTrajectory());
+        presetPanel.add(replayButton);
+        JButton importButton = new JButton("Import CSV...");
+        importButton.addActionListener(e -> importBodies());
+        presetPanel.add(importButton);
+        JButton exportButton = new JButton("Export CSV...");
+        exportButton.addActionListener(e -> exportBodies());
+        presetPanel.add(exportButton);
+
+        tableModel = new BodyTableModel(planetArray, drawingPanel::repaint);
 
         JTable planetTable = new JTable(tableModel);
-        TableColumn deleteColumn = planetTable.getColumnModel().getColumn(5);
-        JButton deleteButton = new JButton("Delete");
-        deleteButton.addActionListener(e -> {
-            int selectedRow = planetTable.getSelectedRow();
-            if (selectedRow != -1) {
-                deletePlanet(selectedRow);
-            }
-        });
-
+        TableColumn deleteColumn = planetTable.getColumnModel().getColumn(BodyTableModel.DELETE);
         deleteColumn.setCellRenderer(new ButtonRenderer());
         deleteColumn.setCellEditor(new ButtonEditor(new JCheckBox()));
 
@@ -136,149 +108,74 @@ public class BHSimulationGUI {
 
     // Add this method to initialize preset planetArrays
     private void initializePreset(int presetNumber) {
-        // Clear existing data
-        for (int i = planetArray.size() - 1; i >= 0; i--) {
-            deletePlanet(i);
-        }
-        int n = 20;
+        // The editor's presets: layout and body count for each button
+        BodyGenerator.Layout[] layouts = {BodyGenerator.Layout.RANDOM, BodyGenerator.Layout.CIRCLE,
+                BodyGenerator.Layout.SPIRAL, BodyGenerator.Layout.GRID, BodyGenerator.Layout.ORBIT};
+        int[] counts = {20, 20, 20, 25, 11};
         double m = 2.0;
-        // Initialize empty planetArrays based on the preset number
-        // For now, just initialize empty arrays
-        switch (presetNumber) {
-            case 1:
-                double margin = 0.2;
-                Random rand = new Random();
-                for (int i = 0; i < n; i++) {
-                    double x = WIDTH * (margin + (1 - 2 * margin) * rand.nextFloat());
-                    double y = HEIGHT * (margin + (1 - 2 * margin) * rand.nextFloat());
-                    double vx = 1 * (y - (double) HEIGHT / 2);
-                    double vy = -1 * (x - (double) WIDTH / 2);
-                    //if(rand.nextBoolean()){m*=-1;}
-                    addPlanet(m, vx, vy, x, y);
-                }
-                break;
-            case 2:
-                double r = 0.4 * WIDTH;
-                for (int i = 0; i < n; i++) {
-                    double x = (double) WIDTH / 2 + r * Math.cos(2 * Math.PI * i / n);
-                    double y = (double) HEIGHT / 2 + r * Math.sin(2 * Math.PI * i / n);
-                    double vx = 1 * (y - HEIGHT / 2.0) * 0.5;
-                    double vy = -1 * (x - WIDTH / 2.0) * 0.5;
-                    vx = 0;
-                    vy = 0;
-                    addPlanet(m, vx, vy, x, y);
-                }
-                break;
-            case 3:
-                double spiralRadius = 0.4 * WIDTH;
-                double rotationSpeed = 0.02;
-                for (int i = 0; i < n; i++) {
-                    double angle = rotationSpeed * i;
-                    double x = (double) WIDTH / 2 + spiralRadius * angle * Math.cos(angle);
-                    double y = (double) HEIGHT / 2 + spiralRadius * angle * Math.sin(angle);
-                    double vx = 1 * (y - HEIGHT / 2.0) * 0.5;
-                    double vy = -1 * (x - WIDTH / 2.0) * 0.5;
-                    addPlanet(m, vx, vy, x, y);
-                }
-                break;
-            case 4:
-                int rows = 5;
-                int cols = 5;
-                double gridSpacing = 60;
-                double angularSpeed = 0.03;
-
-                int planetCount = 0;
-                for (int i = 0; i < rows && planetCount < 25; i++) {
-                    for (int j = 0; j < cols && planetCount < 25; j++) {
-                        double x = (double) WIDTH / 2 + j * gridSpacing - (cols - 1) * gridSpacing / 2.0;
-                        double y = (double) HEIGHT / 2 + i * gridSpacing - (rows - 1) * gridSpacing / 2.0;
-                        double vx = 1 * (y - HEIGHT / 2.0) * 0.5;
-                        double vy = -1 * (x - WIDTH / 2.0) * 0.5;
-                        addPlanet(m, vx, vy, x, y);
-                        planetCount++;
-                    }
-                }
-                break;
-            case 5:
-                double cosmicRadius = 0.4 * WIDTH;
-                double centralMass = 50;
-
-                // Create a central mass with gravitational influence
-                addPlanet(centralMass, 0, 0, WIDTH / 2, HEIGHT / 2);
-
-                // Create orbiting planets forming a cosmic spiral
-                int numPlanets = 10;
-                double spiralFactor = 0.02;
-
-                for (int i = 0; i < numPlanets; i++) {
-                    double angle = 2 * Math.PI * i / numPlanets;
-                    double radius = cosmicRadius + spiralFactor * angle;
-                    double x = WIDTH / 2;
-                    double y = HEIGHT / 2.0 - radius;
-                    double vx = -1 * (y - HEIGHT / 2.0) * 4.5;
-                    double vy = 0;
-                    addPlanet(2, vx, vy, x, y);
-                }
-                break;
-            default:
-                // Do nothing
-
+        BodyStore preset = new BodyStore();
+        if (presetNumber >= 1 && presetNumber <= layouts.length) {
+            BodyGenerator.generate(preset, layouts[presetNumber - 1], counts[presetNumber - 1], m, BodyGenerator.SEED,
+                    ForkJoinPool.commonPool());
         }
-        drawingPanel.repaint();
+        // Clears the old list and fills the new one as one change
+        tableModel.replace(preset);
     }
 
     private void addPlanet(double mass, double velX, double velY, double posX, double posY) {
-        Body newPlanet = new Body(posX, posY, velX, velY, mass);
-        planetArray.add(newPlanet);
-        tableModel.addRow(new Object[]{mass, velX, velY, posX, posY});
-    }
-
-    private void deletePlanet(int row) {
-        planetArray.remove(row);
-        tableModel.removeRow(row);
-        drawingPanel.repaint();
+        tableModel.add(mass, velX, velY, posX, posY);
     }
 
     private void runSimulation() {
-        for (int i = planetArray.size() - 1; i > 0; i--) {
-            if (planetArray.get(i).radius == 0) {
-                planetArray.remove(i);
-            } else {
-                planetArray.get(i).yPos = BHMain.HEIGHT - planetArray.get(i).yPos;
-            }
+        planetArray.retain(i -> planetArray.radius[i] != 0);
+        for (int i = 0; i < planetArray.size(); i++) {
+            planetArray.yPos[i] = BHMain.HEIGHT - planetArray.yPos[i];
         }
         simulation = new BHMain(planetArray);
+        simulation.start();
     }
 
-    private void updateSimulationData(int row, int column, Object data) {
+    // Opens a trajectory recorded with BHMain --record in the replay viewer
+    private void replayTrajectory() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
         try {
-            double value = Double.parseDouble(data.toString());
-
-            switch (column) {
-                case 0:
-                    // Mass column
-                    planetArray.get(row).radius = value;
-                    if(value < 0){throw new NumberFormatException();}
-                    break;
-                case 1:
-                    // Velocity X column
-                    planetArray.get(row).xVel = value;
-                    break;
-                case 2:
-                    // Velocity Y column
-                    planetArray.get(row).yVel = value;
-                    break;
-                case 3:
-                    // Position X column
-                    planetArray.get(row).xPos = value;
-                    break;
-                case 4:
-                    // Position Y column
-                    planetArray.get(row).yPos = value;
-                    break;
-            }
-        } catch (NumberFormatException e) {
-            JOptionPane.showMessageDialog(frame, "Invalid input. Please enter valid numeric values.");
+            TrajectoryReader reader = new TrajectoryReader(chooser.getSelectedFile().toPath());
+            frame.dispose();
+            simulation = new BHMain(reader);
+            simulation.start();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(frame, e.getMessage(), "Can't replay", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Replaces the body list with the bodies in a CSV file
+    private void importBodies() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        BodyStore imported = new BodyStore();
+        try {
+            BodyCsv.read(chooser.getSelectedFile().toPath(), imported);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(frame, e.getMessage(), "Can't import", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        tableModel.replace(imported);
+    }
+
+    private void exportBodies() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            BodyCsv.write(chooser.getSelectedFile().toPath(), planetArray);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(frame, e.getMessage(), "Can't export", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -341,11 +238,14 @@ public class BHSimulationGUI {
             super.paintComponent(g);
             Graphics2D g2d = (Graphics2D) g;
 
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            // Smooth edges only while there are few enough bodies to see them
+            if (planetArray.size() <= ANTIALIAS_LIMIT) {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            }
             g2d.setColor(Color.WHITE);
 
-            for (Body planet : planetArray) {
-                planet.drawBody(g2d);
+            for (int i = 0; i < planetArray.size(); i++) {
+                Body.drawBody(g2d, planetArray.xPos[i], planetArray.yPos[i], planetArray.radius[i]);
             }
         }
 
@@ -366,7 +266,6 @@ public class BHSimulationGUI {
                 double velX = Double.parseDouble(velXString);
                 double velY = Double.parseDouble(velYString);
                 addPlanet(mass, velX, velY, x, y);
-                drawingPanel.repaint();
             } catch (NumberFormatException e) {
                 JOptionPane.showMessageDialog(frame, "Invalid input. Please enter valid numeric values.");
             }
@@ -0,0 +1,185 @@
+import java.util.concurrent.ForkJoinPool;
+
+// Kick-drift-kick leapfrog with hierarchical block timesteps. Each body steps by DT / 2^level,
+// with its level picked from its acceleration, so only bodies in close encounters take the
+// small steps. Steps of every level line up at the end of each DT, where all velocities are
+// synchronized again.
+//
+// Time inside a DT is counted in ticks of the smallest step. Every sub-step drifts all bodies
+// to the next tick where some body's step ends, updates the tree, and evaluates forces only
+// for the bodies whose step ends there.
+class BlockLeapfrog {
+    static final int MAX_LEVEL = 8;  // Smallest step is DT / 2^MAX_LEVEL
+    static final double ETA = 0.05;  // Step accuracy: a body's step is at most ETA sqrt(eps / |a|)
+    private static final int TICKS = 1 << MAX_LEVEL;  // Ticks per DT
+    private static final int CHUNK = 4096;  // Bodies per task in the kick and drift passes
+
+    // Computes accelerations into the body store for the first count bodies in active, which
+    // lists every body when count is the body count. Returns the interactions performed
+    interface Forces {
+        long compute(int[] active, int count);
+    }
+
+    private final BodyStore bodies;
+    private final PoolInvoker invoker;
+    private final Runnable treeUpdate;
+    private final Forces forces;
+    private final int maxLevel;
+    private int[] active = new int[0];
+    private int started = -1;  // Body count the accelerations and levels were set up for
+    private long forceEvaluations;
+    private long subSteps;
+
+    // What the passes below read, set by step before running them. The passes are made once, so
+    // a step allocates nothing once active is big enough
+    private int limit;  // Bodies, or entries of active, the current pass covers
+    private double dt;  // Drift of the current sub-step
+    private int now;  // Tick the current sub-step ends on
+    private final ParallelRange levelPass;
+    private final ParallelRange openPass;
+    private final ParallelRange driftPass;
+    private final ParallelRange closePass;
+
+    BlockLeapfrog(BodyStore bodies, ForkJoinPool pool, Runnable treeUpdate, Forces forces, int maxLevel) {
+        this.bodies = bodies;
+        this.treeUpdate = treeUpdate;
+        this.forces = forces;
+        this.maxLevel = Math.min(maxLevel, MAX_LEVEL);
+        invoker = new PoolInvoker(pool);
+        levelPass = new ParallelRange(invoker, this::levelChunk);
+        openPass = new ParallelRange(invoker, this::openChunk);
+        driftPass = new ParallelRange(invoker, this::driftChunk);
+        closePass = new ParallelRange(invoker, this::closeChunk);
+    }
+
+    // Advances every body by DT, leaving the tree built for the new positions. Returns the
+    // interactions performed
+    long step() {
+        int n = bodies.size();
+        if (active.length < n) {
+            active = new int[bodies.xPos.length];
+        }
+        long interactions = 0;
+        if (started != n) {
+            // Bodies were added or removed: start over from fresh accelerations
+            for (int i = 0; i < n; i++) {
+                active[i] = i;
+            }
+            interactions += forces.compute(active, n);
+            forceEvaluations += n;
+            forEach(n, levelPass);
+            started = n;
+        }
+
+        // Opening half kick; every step starts together at the start of DT
+        forEach(n, openPass);
+        int t = 0;
+        while (t < TICKS) {
+            int deepest = 0;
+            for (int i = 0; i < n; i++) {
+                deepest = Math.max(deepest, bodies.level[i]);
+            }
+            dt = Body.DT / (1 << deepest);
+            forEach(n, driftPass);
+            t += TICKS >> deepest;
+            subSteps++;
+            treeUpdate.run();
+
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (t % (TICKS >> bodies.level[i]) == 0) {
+                    active[count++] = i;
+                }
+            }
+            interactions += forces.compute(active, count);
+            forceEvaluations += count;
+
+            now = t;
+            forEach(count, closePass);
+        }
+        return interactions;
+    }
+
+    // Force evaluations so far, one per body per evaluation
+    long getForceEvaluations() {
+        return forceEvaluations;
+    }
+
+    // Sub-steps taken so far, each ending where at least one body's step ends
+    long getSubSteps() {
+        return subSteps;
+    }
+
+    // Level whose step is short enough for body i's acceleration. A step may only start on a
+    // tick that is a multiple of its length, so a longer step waits until one lines up
+    private int levelFor(int i, int tick) {
+        double a = Math.hypot(bodies.xAcc[i], bodies.yAcc[i]);
+        double eps = Body.DAMP * bodies.radius[i];
+        int level = 0;
+        if (a > 0) {
+            double dt = ETA * Math.sqrt(eps / a);
+            while (level < maxLevel && Body.DT / (1 << level) > dt) {
+                level++;
+            }
+        }
+        while (level < maxLevel && tick % (TICKS >> level) != 0) {
+            level++;
+        }
+        return level;
+    }
+
+    private static double halfStep(int level) {
+        return Body.DT / (2 << level);
+    }
+
+    private void kick(int i, double dt) {
+        bodies.xVel[i] += dt * bodies.xAcc[i];
+        bodies.yVel[i] += dt * bodies.yAcc[i];
+    }
+
+    private void levelChunk(int chunk) {
+        for (int i = chunk * CHUNK, to = chunkEnd(chunk); i < to; i++) {
+            bodies.level[i] = levelFor(i, 0);
+        }
+    }
+
+    private void openChunk(int chunk) {
+        for (int i = chunk * CHUNK, to = chunkEnd(chunk); i < to; i++) {
+            kick(i, halfStep(bodies.level[i]));
+        }
+    }
+
+    private void driftChunk(int chunk) {
+        for (int i = chunk * CHUNK, to = chunkEnd(chunk); i < to; i++) {
+            bodies.xPos[i] += dt * bodies.xVel[i];
+            bodies.yPos[i] += dt * bodies.yVel[i];
+        }
+    }
+
+    // Closing half kick for the active bodies, then a new level and, mid DT, the next step's
+    // opening half kick
+    private void closeChunk(int chunk) {
+        for (int k = chunk * CHUNK, to = chunkEnd(chunk); k < to; k++) {
+            int i = active[k];
+            kick(i, halfStep(bodies.level[i]));
+            int level = levelFor(i, now);
+            bodies.level[i] = level;
+            if (now < TICKS) {
+                kick(i, halfStep(level));
+            }
+        }
+    }
+
+    private int chunkEnd(int chunk) {
+        return Math.min(limit, (chunk + 1) * CHUNK);
+    }
+
+    // Runs pass over the first count bodies, or entries of active, a chunk per task
+    private void forEach(int count, ParallelRange pass) {
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        if (chunks > 0) {
+            limit = count;
+            invoker.invoke(pass.range(0, chunks));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Body lists as CSV, for the editor's import and export. Each line is one body's mass (the
+// editor's word for its radius), x and y velocity and x and y position, in the table's column
+// order and in the editor's coordinates, after a header line naming the columns. Numbers are
+// written the way Double.toString writes them, so a file read back gives the same bodies bit for
+// bit.
+//
+// Both directions go through a FileChannel a buffer at a time and straight to or from the
+// BodyStore arrays, with no per-body objects besides the text of each number.
+public class BodyCsv {
+    static final int COLUMNS = 5;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int LINE_BYTES = 256;  // Room for a line of five doubles, with plenty to spare
+
+    // Writes every body in bodies to path, replacing what's there
+    public static void write(Path path, BodyStore bodies) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            for (int c = 0; c < COLUMNS; c++) {
+                put(buffer, (c > 0 ? "," : "") + BodyTableModel.COLUMNS[c]);
+            }
+            buffer.put((byte) '\n');
+            for (int i = 0; i < bodies.size(); i++) {
+                if (buffer.remaining() < LINE_BYTES) {
+                    drain(channel, buffer);
+                }
+                put(buffer, Double.toString(bodies.radius[i]));
+                buffer.put((byte) ',');
+                put(buffer, Double.toString(bodies.xVel[i]));
+                buffer.put((byte) ',');
+                put(buffer, Double.toString(bodies.yVel[i]));
+                buffer.put((byte) ',');
+                put(buffer, Double.toString(bodies.xPos[i]));
+                buffer.put((byte) ',');
+                put(buffer, Double.toString(bodies.yPos[i]));
+                buffer.put((byte) '\n');
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    // Appends the bodies in the file at path to bodies and returns how many there were. A first
+    // line that doesn't start with a number is taken as a header; blank lines are skipped. On a
+    // malformed line nothing is added, and the exception gives the line number
+    public static int read(Path path, BodyStore bodies) throws IOException {
+        int start = bodies.size();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            byte[] bytes = buffer.array();
+            double[] values = new double[COLUMNS];
+            int line = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                int end = buffer.position();
+                int from = 0;
+                for (int i = 0; i < end; i++) {
+                    if (bytes[i] == '\n') {
+                        parseLine(bytes, from, i, ++line, values, bodies);
+                        from = i + 1;
+                    }
+                }
+                if (eof && from < end) {
+                    parseLine(bytes, from, end, ++line, values, bodies);  // No newline at the end
+                    from = end;
+                }
+                if (from == 0 && end == bytes.length) {
+                    throw new IOException("Line " + (line + 1) + " is longer than " + BUFFER_BYTES + " bytes");
+                }
+                // Carry the unfinished line over to the front of the buffer
+                buffer.position(from).limit(end);
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            bodies.size = start;
+            throw e;
+        }
+        return bodies.size() - start;
+    }
+
+    // Parses the line in bytes[from, to) into a new body
+    private static void parseLine(byte[] bytes, int from, int to, int line, double[] values, BodyStore bodies)
+            throws IOException {
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        if (blank(bytes, from, to)) {
+            return;
+        }
+        int column = 0;
+        int field = from;
+        for (int i = from; i <= to; i++) {
+            if (i < to && bytes[i] != ',') {
+                continue;
+            }
+            if (column == COLUMNS) {
+                throw new IOException("Line " + line + ": expected " + COLUMNS + " values");
+            }
+            String text = new String(bytes, field, i - field, StandardCharsets.ISO_8859_1);
+            try {
+                values[column] = Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                if (line == 1 && column == 0) {
+                    return;  // Header
+                }
+                throw new IOException("Line " + line + ": \"" + text.trim() + "\" isn't a number");
+            }
+            column++;
+            field = i + 1;
+        }
+        if (column < COLUMNS) {
+            throw new IOException("Line " + line + ": expected " + COLUMNS + " values");
+        }
+        if (values[0] < 0) {
+            throw new IOException("Line " + line + ": mass can't be negative");
+        }
+        bodies.add(values[3], values[4], values[1], values[2], values[0]);
+    }
+
+    private static boolean blank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void put(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
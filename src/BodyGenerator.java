@@ -0,0 +1,211 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+// Starting layouts, filled into the body store in parallel. The bodies are cut into chunks of
+// CHUNK, and chunk c draws from the c-th generator split off a SplittableRandom seeded with the
+// run's seed, taking its bodies in index order. Which thread fills a chunk doesn't change what
+// it draws, so a seed gives the same bodies bit for bit on any number of threads.
+//
+// random, circle and solar are the layouts InitialConditions always had; spiral, grid and orbit
+// are the body editor's presets, scaled so that any body count gives the same shape. plummer,
+// disk and galaxies start close to equilibrium: speeds come from the mass inside each body's
+// radius, with the pull weakened by the softening the force kernel uses.
+public class BodyGenerator {
+    static final int CHUNK = 1 << 16;  // Bodies per chunk, and per random stream
+    public static final long SEED = 1;  // Seed when none is given
+    private static final double W = BHMain.WIDTH;
+    private static final double H = BHMain.HEIGHT;
+    private static final double PLUMMER_SCALE = 0.08 * W;
+    private static final double PLUMMER_CUTOFF = 10;  // Radii beyond this many scale lengths are drawn again
+    private static final double DISK_SCALE = 0.1 * W;
+    private static final double DISK_EDGE = 0.45 * W;
+    private static final double DISK_DISPERSION = 0.05;  // Random velocity, as a share of the circular speed
+    private static final double GALAXY_SCALE = 0.04 * W;
+    private static final double GALAXY_EDGE = 0.15 * W;
+    private static final double GALAXY_OFFSET = 0.2 * W;  // Each galaxy's centre from the middle, along x
+    private static final double GALAXY_MISS = 0.05 * H;  // And across, so they pass off centre
+
+    public enum Layout {
+        RANDOM, CIRCLE, SOLAR, SPIRAL, GRID, ORBIT, PLUMMER, DISK, GALAXIES;
+
+        static Layout parse(String name) {
+            for (Layout layout : values()) {
+                if (layout.label().equals(name)) {
+                    return layout;
+                }
+            }
+            throw new IllegalArgumentException("Unknown preset " + name + ", expected one of " + String.join(", ", labels()));
+        }
+
+        String label() {
+            return name().toLowerCase();
+        }
+
+        static String[] labels() {
+            String[] labels = new String[values().length];
+            for (Layout layout : values()) {
+                labels[layout.ordinal()] = layout.label();
+            }
+            return labels;
+        }
+    }
+
+    // Appends n bodies of radius m laid out by layout, drawn from seed, filling chunks on pool
+    public static void generate(BodyStore bodies, Layout layout, int n, double m, long seed, ForkJoinPool pool) {
+        if (n <= 0) {
+            return;
+        }
+        int first = bodies.extend(n);
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] streams = new SplittableRandom[chunks];
+        for (int c = 0; c < chunks; c++) {
+            streams[c] = root.split();
+        }
+        pool.invoke(new ParallelRange(c -> {
+            SplittableRandom rand = streams[c];
+            int to = Math.min(n, (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < to; i++) {
+                place(bodies, first + i, layout, i, n, m, rand);
+            }
+        }, 0, chunks));
+    }
+
+    // Lays out body i of n as store index k
+    private static void place(BodyStore b, int k, Layout layout, int i, int n, double m, SplittableRandom rand) {
+        switch (layout) {
+            case RANDOM: {
+                double margin = 0.2;
+                double x = W * (margin + (1 - 2 * margin) * rand.nextDouble());
+                double y = H * (margin + (1 - 2 * margin) * rand.nextDouble());
+                set(b, k, x, y, y - H / 2, -(x - W / 2), m);
+                break;
+            }
+            case CIRCLE: {
+                double r = 0.4 * W;
+                set(b, k, W / 2 + r * Math.cos(2 * Math.PI * i / n), H / 2 + r * Math.sin(2 * Math.PI * i / n), 0, 0, m);
+                break;
+            }
+            case SOLAR: {
+                // A star, then planets on a line out from it; the star counts towards n
+                if (i == 0) {
+                    set(b, k, W / 2, H / 2, 0, 0, 10);
+                    break;
+                }
+                double x = W / 2 + 0.4 * W * i / (n - 1);
+                set(b, k, x, H / 2, 0, -2 * (x - W / 2), m);
+                break;
+            }
+            case SPIRAL: {
+                double angle = 0.4 * i / n;  // 0.02 per body for the editor's 20
+                double x = W / 2 + 0.4 * W * angle * Math.cos(angle);
+                double y = H / 2 + 0.4 * W * angle * Math.sin(angle);
+                set(b, k, x, y, (y - H / 2) * 0.5, -(x - W / 2) * 0.5, m);
+                break;
+            }
+            case GRID: {
+                // Square grid 240 pixels across, filled row by row; 60 pixel spacing for 25 bodies
+                int side = (int) Math.ceil(Math.sqrt(n));
+                double spacing = side > 1 ? 240.0 / (side - 1) : 0;
+                double x = W / 2 + (i % side) * spacing - (side - 1) * spacing / 2;
+                double y = H / 2 + (i / side) * spacing - (side - 1) * spacing / 2;
+                set(b, k, x, y, (y - H / 2) * 0.5, -(x - W / 2) * 0.5, m);
+                break;
+            }
+            case ORBIT: {
+                // A heavy body with a ring around it, starting at the top and going clockwise
+                if (i == 0) {
+                    set(b, k, W / 2, H / 2, 0, 0, 25 * m);
+                    break;
+                }
+                double angle = 2 * Math.PI * (i - 1) / (n - 1);
+                double r = 0.4 * W + 0.02 * angle;
+                set(b, k, W / 2 + r * Math.sin(angle), H / 2 - r * Math.cos(angle),
+                        4.5 * r * Math.cos(angle), 4.5 * r * Math.sin(angle), m);
+                break;
+            }
+            case PLUMMER:
+                plummer(b, k, n, m, rand);
+                break;
+            case DISK: {
+                double total = n * Math.PI * m * m;
+                disk(b, k, W / 2, H / 2, 0, DISK_SCALE, DISK_EDGE, total, 1, m, rand);
+                break;
+            }
+            case GALAXIES: {
+                // First half in one disk, the rest in the other, spinning opposite ways and
+                // falling towards each other at about the speed they would from far away
+                int half = n / 2;
+                boolean left = i < half;
+                double mass = Math.PI * m * m;
+                double total = n * mass;
+                double own = (left ? half : n - half) * mass;
+                double d = 2 * Math.hypot(GALAXY_OFFSET, GALAXY_MISS);
+                double eps = Body.DAMP * m;
+                double closing = 0.5 * Math.sqrt(2 * Body.G * total * d / (d * d + eps * eps));
+                double side = left ? -1 : 1;
+                disk(b, k, W / 2 + side * GALAXY_OFFSET, H / 2 + side * GALAXY_MISS, -side * closing,
+                        GALAXY_SCALE, GALAXY_EDGE, own, side, m, rand);
+                break;
+            }
+        }
+    }
+
+    // Plummer sphere flattened into the plane: radii follow the Plummer mass profile and speeds
+    // its distribution function (Aarseth, Henon and Wielen's rejection method), with directions
+    // drawn in the plane
+    private static void plummer(BodyStore b, int k, int n, double m, SplittableRandom rand) {
+        double a = PLUMMER_SCALE;
+        double r;
+        do {
+            r = a / Math.sqrt(Math.pow(1 - rand.nextDouble(), -2.0 / 3) - 1);
+        } while (!(r <= PLUMMER_CUTOFF * a));
+        double q;
+        do {
+            q = rand.nextDouble();
+        } while (0.1 * rand.nextDouble() > q * q * Math.pow(1 - q * q, 3.5));
+        // The softening weakens the pull about as much as a scale of sqrt(a^2 + eps^2) would
+        double eps = Body.DAMP * m;
+        double total = n * Math.PI * m * m;
+        double scale = Math.sqrt(Body.G * total / a) * Math.sqrt(a / Math.sqrt(a * a + eps * eps));
+        double speed = q * Math.sqrt(2) * Math.pow(1 + r * r / (a * a), -0.25) * scale;
+        double at = 2 * Math.PI * rand.nextDouble();
+        double towards = 2 * Math.PI * rand.nextDouble();
+        set(b, k, W / 2 + r * Math.cos(at), H / 2 + r * Math.sin(at), speed * Math.cos(towards), speed * Math.sin(towards), m);
+    }
+
+    // Exponential disk of scale length h cut off at edge, with total mass, centred on (x0, y0)
+    // and drifting along x at vx0. Bodies orbit at the circular speed for the mass inside
+    // their radius, turning the way the random preset does for spin 1 and the other way for -1
+    private static void disk(BodyStore b, int k, double x0, double y0, double vx0, double h, double edge, double total,
+                             double spin, double m, SplittableRandom rand) {
+        double r;
+        do {
+            // Gamma(2, h), the radius of a body in an exponential disk
+            r = -h * Math.log((1 - rand.nextDouble()) * (1 - rand.nextDouble()));
+        } while (!(r <= edge));
+        double angle = 2 * Math.PI * rand.nextDouble();
+        double inside = total * enclosed(r, h) / enclosed(edge, h);
+        double eps = Body.DAMP * m;
+        // The kernel pulls with G m / (r^2 + eps^2)
+        double speed = Math.sqrt(Body.G * inside * r / (r * r + eps * eps));
+        double dx = Math.cos(angle);
+        double dy = Math.sin(angle);
+        double vx = vx0 + spin * speed * dy + DISK_DISPERSION * speed * rand.nextGaussian();
+        double vy = -spin * speed * dx + DISK_DISPERSION * speed * rand.nextGaussian();
+        set(b, k, x0 + r * dx, y0 + r * dy, vx, vy, m);
+    }
+
+    // Share of an exponential disk's mass within r of its centre, unnormalized
+    private static double enclosed(double r, double h) {
+        return 1 - (1 + r / h) * Math.exp(-r / h);
+    }
+
+    private static void set(BodyStore b, int k, double x, double y, double vx, double vy, double radius) {
+        b.xPos[k] = x;
+        b.yPos[k] = y;
+        b.xVel[k] = vx;
+        b.yVel[k] = vy;
+        b.setRadius(k, radius);
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// Structure-of-arrays storage for every body in the simulation, addressed by index
+public class BodyStore {
+    double[] xPos;
+    double[] yPos;
+    double[] xVel;
+    double[] yVel;
+    double[] radius;
+    double[] mass;
+    int size;
+
+    // Back buffer written during a step and swapped in at the end of it
+    double[] nextXPos;
+    double[] nextYPos;
+    double[] nextXVel;
+    double[] nextYVel;
+
+    // Leapfrog state: acceleration from the last force evaluation, and block timestep level
+    double[] xAcc;
+    double[] yAcc;
+    int[] level;
+
+    public BodyStore() {
+        this(16);
+    }
+
+    public BodyStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        xPos = new double[capacity];
+        yPos = new double[capacity];
+        xVel = new double[capacity];
+        yVel = new double[capacity];
+        radius = new double[capacity];
+        mass = new double[capacity];
+        nextXPos = new double[capacity];
+        nextYPos = new double[capacity];
+        nextXVel = new double[capacity];
+        nextYVel = new double[capacity];
+        xAcc = new double[capacity];
+        yAcc = new double[capacity];
+        level = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Appends a body and returns its index
+    public int add(double xPos, double yPos, double xVel, double yVel, double radius) {
+        if (size == this.xPos.length) {
+            grow(size + 1);
+        }
+        int i = size++;
+        this.xPos[i] = xPos;
+        this.yPos[i] = yPos;
+        this.xVel[i] = xVel;
+        this.yVel[i] = yVel;
+        xAcc[i] = 0;
+        yAcc[i] = 0;
+        level[i] = 0;
+        setRadius(i, radius);
+        return i;
+    }
+
+    // Removes a body, shifting later bodies down so indices stay in insertion order
+    public void remove(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Body " + i + " out of range for size " + size);
+        }
+        int tail = size - i - 1;
+        System.arraycopy(xPos, i + 1, xPos, i, tail);
+        System.arraycopy(yPos, i + 1, yPos, i, tail);
+        System.arraycopy(xVel, i + 1, xVel, i, tail);
+        System.arraycopy(yVel, i + 1, yVel, i, tail);
+        System.arraycopy(radius, i + 1, radius, i, tail);
+        System.arraycopy(mass, i + 1, mass, i, tail);
+        System.arraycopy(xAcc, i + 1, xAcc, i, tail);
+        System.arraycopy(yAcc, i + 1, yAcc, i, tail);
+        System.arraycopy(level, i + 1, level, i, tail);
+        size--;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Appends every body of other, in one copy per field
+    void addAll(BodyStore other) {
+        int n = other.size;
+        int first = extend(n);
+        System.arraycopy(other.xPos, 0, xPos, first, n);
+        System.arraycopy(other.yPos, 0, yPos, first, n);
+        System.arraycopy(other.xVel, 0, xVel, first, n);
+        System.arraycopy(other.yVel, 0, yVel, first, n);
+        System.arraycopy(other.radius, 0, radius, first, n);
+        System.arraycopy(other.mass, 0, mass, first, n);
+    }
+
+    // Removes every body keep rejects in one pass, keeping the rest in order. Returns how many
+    // were removed
+    int retain(IntPredicate keep) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep.test(i)) {
+                continue;
+            }
+            xPos[kept] = xPos[i];
+            yPos[kept] = yPos[i];
+            xVel[kept] = xVel[i];
+            yVel[kept] = yVel[i];
+            radius[kept] = radius[i];
+            mass[kept] = mass[i];
+            xAcc[kept] = xAcc[i];
+            yAcc[kept] = yAcc[i];
+            level[kept] = level[i];
+            kept++;
+        }
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    // Appends count bodies for the caller to fill in and returns the index of the first. They
+    // start with no acceleration and at level 0; every other field is left to the caller
+    int extend(int count) {
+        int first = size;
+        ensureCapacity(first + count);
+        Arrays.fill(xAcc, first, first + count, 0);
+        Arrays.fill(yAcc, first, first + count, 0);
+        Arrays.fill(level, first, first + count, 0);
+        size = first + count;
+        return first;
+    }
+
+    // Returns a view onto body i; the view is only valid until bodies are removed
+    public Body get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Body " + i + " out of range for size " + size);
+        }
+        return new Body(this, i);
+    }
+
+    void setRadius(int i, double r) {
+        radius[i] = r;
+        mass[i] = Math.PI * r * r; // Mass proportional to area
+    }
+
+    // Starts body i's step: copies its velocity into the back buffer for updateVelocity to add to
+    void beginStep(int i) {
+        nextXVel[i] = xVel[i];
+        nextYVel[i] = yVel[i];
+    }
+
+    // Rectangle integral approximation, written to the back buffer
+    void updatePosition(int i) {
+        nextXPos[i] = xPos[i] + Body.DT * xVel[i];
+        nextYPos[i] = yPos[i] + Body.DT * yVel[i];
+    }
+
+    // Makes the back buffer current once every body has been stepped
+    void swap() {
+        double[] t = xPos;
+        xPos = nextXPos;
+        nextXPos = t;
+        t = yPos;
+        yPos = nextYPos;
+        nextYPos = t;
+        t = xVel;
+        xVel = nextXVel;
+        nextXVel = t;
+        t = yVel;
+        yVel = nextYVel;
+        nextYVel = t;
+    }
+
+    // Adds the pull of every interaction in list to body i's back buffer velocity. Reads the
+    // current positions and only writes body i's slot, so bodies can be updated in parallel
+    void updateVelocity(int i, InteractionList list) {
+        updateVelocity(i, xPos[i], yPos[i], list);
+    }
+
+    // As above, with body i at (x, y) in the frame the list was filled in
+    void updateVelocity(int i, double x, double y, InteractionList list) {
+        double EPS = Body.DAMP * radius[i];  // Softening to eliminate erratic behavior on collisions
+        list.accelerate(x, y, EPS * EPS);
+
+        // v = v0 + a*t
+        nextXVel[i] += Body.DT * list.ax;
+        nextYVel[i] += Body.DT * list.ay;
+    }
+
+    // Makes room for at least capacity bodies without changing any
+    void ensureCapacity(int capacity) {
+        if (capacity > xPos.length) {
+            grow(capacity);
+        }
+    }
+
+    // Stores the pull of every interaction in list on body i as its acceleration, for the leapfrog
+    void accelerate(int i, InteractionList list) {
+        accelerate(i, xPos[i], yPos[i], list);
+    }
+
+    void accelerate(int i, double x, double y, InteractionList list) {
+        double EPS = Body.DAMP * radius[i];
+        list.accelerate(x, y, EPS * EPS);
+        xAcc[i] = list.ax;
+        yAcc[i] = list.ay;
+    }
+
+    private void grow(int min) {
+        int capacity = Math.max(min, xPos.length + (xPos.length >> 1));
+        xPos = Arrays.copyOf(xPos, capacity);
+        yPos = Arrays.copyOf(yPos, capacity);
+        xVel = Arrays.copyOf(xVel, capacity);
+        yVel = Arrays.copyOf(yVel, capacity);
+        radius = Arrays.copyOf(radius, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        nextXPos = new double[capacity];
+        nextYPos = new double[capacity];
+        nextXVel = new double[capacity];
+        nextYVel = new double[capacity];
+        xAcc = Arrays.copyOf(xAcc, capacity);
+        yAcc = Arrays.copyOf(yAcc, capacity);
+        level = Arrays.copyOf(level, capacity);
+    }
+}
@@ -0,0 +1,136 @@
+import javax.swing.UIManager;
+import javax.swing.table.AbstractTableModel;
+
+// The body editor's table, read straight out of the BodyStore arrays. The table only asks for
+// the cells it shows, so a store of any size costs nothing until it's scrolled to, and no row
+// objects are kept. Changes that touch many rows, like clearing the list or loading a preset or
+// file, fire one table event and call changed once, so the drawing repaints once per batch.
+class BodyTableModel extends AbstractTableModel {
+    // Mass is what the editor has always called the radius; the mass follows from it
+    static final String[] COLUMNS = {"Mass", "Velocity X", "Velocity Y", "Position X", "Position Y", "Delete"};
+    static final int DELETE = 5;
+
+    private final BodyStore bodies;
+    private final Runnable changed;
+
+    BodyTableModel(BodyStore bodies, Runnable changed) {
+        this.bodies = bodies;
+        this.changed = changed;
+    }
+
+    @Override
+    public int getRowCount() {
+        return bodies.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    // Numbers, so the table's own editor checks what's typed
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == DELETE ? Object.class : Double.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return true;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        switch (column) {
+            case 0:
+                return bodies.radius[row];
+            case 1:
+                return bodies.xVel[row];
+            case 2:
+                return bodies.yVel[row];
+            case 3:
+                return bodies.xPos[row];
+            case 4:
+                return bodies.yPos[row];
+            default:
+                return "Delete";
+        }
+    }
+
+    @Override
+    public void setValueAt(Object value, int row, int column) {
+        if (column == DELETE) {
+            remove(row);
+            return;
+        }
+        double v = ((Number) value).doubleValue();
+        switch (column) {
+            case 0:
+                if (v < 0) {
+                    UIManager.getLookAndFeel().provideErrorFeedback(null);
+                    return;
+                }
+                bodies.setRadius(row, v);
+                break;
+            case 1:
+                bodies.xVel[row] = v;
+                break;
+            case 2:
+                bodies.yVel[row] = v;
+                break;
+            case 3:
+                bodies.xPos[row] = v;
+                break;
+            case 4:
+                bodies.yPos[row] = v;
+                break;
+        }
+        fireTableCellUpdated(row, column);
+        changed.run();
+    }
+
+    void add(double radius, double xVel, double yVel, double xPos, double yPos) {
+        int i = bodies.add(xPos, yPos, xVel, yVel, radius);
+        fireTableRowsInserted(i, i);
+        changed.run();
+    }
+
+    // Appends every body in other
+    void addAll(BodyStore other) {
+        if (other.size() == 0) {
+            return;
+        }
+        int first = bodies.size();
+        bodies.addAll(other);
+        fireTableRowsInserted(first, bodies.size() - 1);
+        changed.run();
+    }
+
+    // Swaps the whole list for the bodies in other
+    void replace(BodyStore other) {
+        bodies.clear();
+        bodies.addAll(other);
+        fireTableDataChanged();
+        changed.run();
+    }
+
+    void remove(int row) {
+        if (row < 0 || row >= bodies.size()) {
+            return;  // The delete button's edit can outlive a batch that removed its row
+        }
+        bodies.remove(row);
+        fireTableRowsDeleted(row, row);
+        changed.run();
+    }
+
+    void clear() {
+        bodies.clear();
+        fireTableDataChanged();
+        changed.run();
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.CountedCompleter;
+
+// Fork/join reduction of the bounding box of a range of bodies. Positions that are not
+// numbers fail every comparison and are left out. Like ParallelRange, a task made with a
+// PoolInvoker as its parent can be run again over a new range, reusing its subtasks.
+class BoundsTask extends CountedCompleter<Void> {
+    static final int CHUNK = 8192;  // Bodies per leaf task
+    private final BodyStore bodies;
+    private int from;
+    private int to;
+    private BoundsTask left;
+    private BoundsTask right;
+    private boolean split;  // Whether this run went to left and right
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+
+    // A task to be set with range() before each run through parent
+    BoundsTask(CountedCompleter<?> parent, BodyStore bodies) {
+        super(parent);
+        this.bodies = bodies;
+    }
+
+    BoundsTask(BodyStore bodies, int from, int to) {
+        this.bodies = bodies;
+        this.from = from;
+        this.to = to;
+    }
+
+    // Readies this task to run over [from, to), once the last run has finished
+    BoundsTask range(int from, int to) {
+        reinitialize();
+        setPendingCount(0);
+        this.from = from;
+        this.to = to;
+        split = false;
+        minX = Double.POSITIVE_INFINITY;
+        minY = Double.POSITIVE_INFINITY;
+        maxX = Double.NEGATIVE_INFINITY;
+        maxY = Double.NEGATIVE_INFINITY;
+        return this;
+    }
+
+    // True when no body had a position to take the bounds from
+    boolean isEmpty() {
+        return !(minX <= maxX && minY <= maxY);
+    }
+
+    @Override
+    public void compute() {
+        // Forks the right halves and carries on down the left ones in this thread
+        BoundsTask t = this;
+        while (t.to - t.from > CHUNK) {
+            int mid = (t.from + t.to) >>> 1;
+            if (t.left == null) {
+                t.left = new BoundsTask(t, bodies);
+                t.right = new BoundsTask(t, bodies);
+            }
+            t.split = true;
+            t.setPendingCount(1);
+            t.right.range(mid, t.to).fork();
+            t = t.left.range(t.from, mid);
+        }
+        double[] x = bodies.xPos;
+        double[] y = bodies.yPos;
+        for (int i = t.from; i < t.to; i++) {
+            if (x[i] < t.minX) {
+                t.minX = x[i];
+            }
+            if (x[i] > t.maxX) {
+                t.maxX = x[i];
+            }
+            if (y[i] < t.minY) {
+                t.minY = y[i];
+            }
+            if (y[i] > t.maxY) {
+                t.maxY = y[i];
+            }
+        }
+        t.tryComplete();
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+        if (split) {
+            minX = Math.min(left.minX, right.minX);
+            minY = Math.min(left.minY, right.minY);
+            maxX = Math.max(left.maxX, right.maxX);
+            maxY = Math.max(left.maxY, right.maxY);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot of the simulation state, for checkpointing long runs and restarting them.
+// Everything is little-endian and read and written through memory-mapped buffers, straight
+// from and into the BodyStore arrays, with no per-body objects.
+//
+// Layout:
+//   0  int    MAGIC ("BHCK" read as bytes)
+//   4  int    VERSION
+//   8  int    body count n
+//  12  int    reserved, 0
+//  16  long   steps taken
+//  24  double timestep in seconds
+//  32  double[n] x positions, then y positions, x velocities, y velocities, radii and masses,
+//      one block after the other
+public class Checkpoint {
+    static final int MAGIC = 0x4B434842;  // "BHCK" in little-endian byte order
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    private static final int BLOCKS = 6;
+
+    final int count;
+    final long steps;
+    final double dt;
+
+    private Checkpoint(int count, long steps, double dt) {
+        this.count = count;
+        this.steps = steps;
+        this.dt = dt;
+    }
+
+    // Writes every body in bodies. The file is written next to path and moved over it once
+    // complete, so a crash mid-write leaves the previous checkpoint intact
+    public static void write(Path path, BodyStore bodies, long steps) throws IOException {
+        int n = bodies.size();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0).putLong(steps).putDouble(Body.DT);
+            double[][] blocks = {bodies.xPos, bodies.yPos, bodies.xVel, bodies.yVel, bodies.radius, bodies.mass};
+            for (int b = 0; b < BLOCKS; b++) {
+                mapBlock(channel, FileChannel.MapMode.READ_WRITE, b, n).put(blocks[b], 0, n);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Replaces the contents of bodies with the bodies in the file
+    public static Checkpoint read(Path path, BodyStore bodies) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(path + " is too short to be a checkpoint");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a checkpoint");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has checkpoint version " + version + ", expected " + VERSION);
+            }
+            int n = header.getInt();
+            header.getInt();
+            long steps = header.getLong();
+            double dt = header.getDouble();
+            if (n < 0 || channel.size() < HEADER_BYTES + (long) BLOCKS * n * Double.BYTES) {
+                throw new IOException(path + " is truncated: expected " + n + " bodies");
+            }
+
+            bodies.clear();
+            bodies.ensureCapacity(n);
+            double[][] blocks = {bodies.xPos, bodies.yPos, bodies.xVel, bodies.yVel, bodies.radius, bodies.mass};
+            for (int b = 0; b < BLOCKS; b++) {
+                mapBlock(channel, FileChannel.MapMode.READ_ONLY, b, n).get(blocks[b], 0, n);
+            }
+            bodies.size = n;
+            return new Checkpoint(n, steps, dt);
+        }
+    }
+
+    // Maps block b on its own, so files past 2 GB only need each block to fit in one mapping
+    private static DoubleBuffer mapBlock(FileChannel channel, FileChannel.MapMode mode, int b, int n) throws IOException {
+        long offset = HEADER_BYTES + (long) b * n * Double.BYTES;
+        MappedByteBuffer buffer = channel.map(mode, offset, (long) n * Double.BYTES);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+}
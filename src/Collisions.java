@@ -0,0 +1,348 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Merges bodies that touch. Overlapping pairs are found with box queries against the
+// quadtree, in parallel over the leaves, so finding them costs O(N log N) rather than a check
+// of every pair. Bodies that touch, directly or through a chain of others, merge into the one
+// with the lowest index, conserving mass, centre of mass and momentum; the rest are removed and
+// the store compacted in parallel, keeping the survivors in index order.
+//
+// Only bodies placed in the tree take part, so bodies outside the root are left alone until
+// the next rebuild takes them in. Results don't depend on the thread count.
+class Collisions {
+    private static final int CHUNK = 4096;  // Bodies per compaction task
+    private static final int NODE_CHUNK = 1024;  // Quads per pair finding task
+
+    private final BodyStore bodies;
+    private final Quad tree;
+    private final ForkJoinPool pool;
+
+    // Box around the bodies under each quad, grown by each body's radius, so two bodies can
+    // only touch if their quads' boxes overlap
+    private double[] minX = new double[0];
+    private double[] maxX = new double[0];
+    private double[] minY = new double[0];
+    private double[] maxY = new double[0];
+    private int[][] chunkPairs = new int[0][];  // Touching pairs found by each chunk, i then j
+    private int[] chunkPairCount = new int[0];
+    private int[] parent = new int[0];  // Union-find over bodies, only valid for bodies in pairs
+    private long[] members = new long[0];  // Bodies in pairs, as cluster root << 32 | body
+    private int[] newIndex = new int[0];  // NONE for bodies merged away, 0 for the rest
+
+    // Spares the compacted arrays are written to, then exchanged with the store's
+    private double[] spareRadius = new double[0];
+    private double[] spareMass = new double[0];
+    private double[] spareXAcc = new double[0];
+    private double[] spareYAcc = new double[0];
+    private int[] spareLevel = new int[0];
+
+    private long merged;
+
+    Collisions(BodyStore bodies, Quad tree, ForkJoinPool pool) {
+        this.bodies = bodies;
+        this.tree = tree;
+        this.pool = pool;
+    }
+
+    // Merges every touching body into its cluster. The tree must be built for the current
+    // positions, and needs rebuilding afterwards if any bodies were removed. Returns how many
+    // bodies were removed
+    int merge() {
+        int n = bodies.size();
+        if (n < 2 || tree.nodeCount == 0) {
+            return 0;
+        }
+        measureBounds();
+        int pairs = findPairs();
+        if (pairs == 0) {
+            return 0;
+        }
+        int removed = mergeClusters(n);
+        compact(n, n - removed);
+        merged += removed;
+        return removed;
+    }
+
+    // Bodies removed by merging so far
+    long getMerged() {
+        return merged;
+    }
+
+    // Bottom-up pass measuring each quad's box. Children are always created after their
+    // parent, so going backwards visits them first
+    private void measureBounds() {
+        if (minX.length < tree.nodeCount) {
+            int capacity = tree.xMid.length;
+            minX = new double[capacity];
+            maxX = new double[capacity];
+            minY = new double[capacity];
+            maxY = new double[capacity];
+        }
+        for (int q = tree.nodeCount - 1; q >= 0; q--) {
+            double x0 = Double.POSITIVE_INFINITY;
+            double x1 = Double.NEGATIVE_INFINITY;
+            double y0 = Double.POSITIVE_INFINITY;
+            double y1 = Double.NEGATIVE_INFINITY;
+            int c = tree.child[q];
+            if (c == Quad.NONE) {
+                for (int b = tree.first[q]; b != Quad.NONE; b = tree.next[b]) {
+                    double r = Math.abs(bodies.radius[b]);
+                    x0 = Math.min(x0, bodies.xPos[b] - r);
+                    x1 = Math.max(x1, bodies.xPos[b] + r);
+                    y0 = Math.min(y0, bodies.yPos[b] - r);
+                    y1 = Math.max(y1, bodies.yPos[b] + r);
+                }
+            } else {
+                for (int k = c; k < c + 4; k++) {
+                    x0 = Math.min(x0, minX[k]);
+                    x1 = Math.max(x1, maxX[k]);
+                    y0 = Math.min(y0, minY[k]);
+                    y1 = Math.max(y1, maxY[k]);
+                }
+            }
+            minX[q] = x0;
+            maxX[q] = x1;
+            minY[q] = y0;
+            maxY[q] = y1;
+        }
+    }
+
+    // Leaves are queried against the tree a whole box at a time, like the group walk, so each
+    // walk is shared by every body in the leaf and neighbouring bodies are read close together
+    private int findPairs() {
+        int nodes = tree.nodeCount;
+        int chunks = (nodes + NODE_CHUNK - 1) / NODE_CHUNK;
+        if (chunkPairs.length < chunks) {
+            chunkPairs = Arrays.copyOf(chunkPairs, chunks);
+            chunkPairCount = new int[chunks];
+        }
+        Arrays.fill(chunkPairCount, 0);
+        pool.invoke(new ParallelRange(c -> {
+            int to = Math.min(nodes, (c + 1) * NODE_CHUNK);
+            for (int leaf = c * NODE_CHUNK; leaf < to; leaf++) {
+                if (tree.child[leaf] == Quad.NONE && tree.first[leaf] != Quad.NONE) {
+                    query(0, leaf, c);
+                }
+            }
+        }, 0, chunks));
+        int pairs = 0;
+        for (int c = 0; c < chunks; c++) {
+            pairs += chunkPairCount[c];
+        }
+        return pairs;
+    }
+
+    // Records every pair of touching bodies with one in leaf and the other under quad q, the
+    // second having the higher index. Quads whose box misses the leaf's are skipped; empty
+    // quads have an empty box and always miss
+    private void query(int q, int leaf, int chunk) {
+        if (maxX[q] <= minX[leaf] || minX[q] >= maxX[leaf] || maxY[q] <= minY[leaf] || minY[q] >= maxY[leaf]) {
+            return;
+        }
+        int c = tree.child[q];
+        if (c != Quad.NONE) {
+            for (int k = c; k < c + 4; k++) {
+                query(k, leaf, chunk);
+            }
+            return;
+        }
+        for (int i = tree.first[leaf]; i != Quad.NONE; i = tree.next[i]) {
+            double x = bodies.xPos[i];
+            double y = bodies.yPos[i];
+            double r = Math.abs(bodies.radius[i]);
+            for (int j = tree.first[q]; j != Quad.NONE; j = tree.next[j]) {
+                if (j > i) {
+                    double ox = bodies.xPos[j] - x;
+                    double oy = bodies.yPos[j] - y;
+                    double touch = r + Math.abs(bodies.radius[j]);
+                    if (ox * ox + oy * oy < touch * touch) {
+                        addPair(chunk, i, j);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addPair(int chunk, int i, int j) {
+        int[] list = chunkPairs[chunk];
+        int count = chunkPairCount[chunk];
+        if (list == null || 2 * count + 2 > list.length) {
+            list = Arrays.copyOf(list == null ? new int[0] : list, Math.max(16, 4 * count));
+            chunkPairs[chunk] = list;
+        }
+        list[2 * count] = i;
+        list[2 * count + 1] = j;
+        chunkPairCount[chunk] = count + 1;
+    }
+
+    // Joins the pairs into clusters and merges each cluster into its lowest index body,
+    // marking the others removed in newIndex. Returns how many were removed
+    private int mergeClusters(int n) {
+        if (parent.length < n) {
+            parent = new int[bodies.xPos.length];
+            newIndex = new int[bodies.xPos.length];
+        }
+        Arrays.fill(newIndex, 0, n, 0);  // 0 keeps the body, NONE removes it
+        int involved = 0;
+        for (int c = 0; c < chunkPairCount.length; c++) {
+            for (int k = 0; k < 2 * chunkPairCount[c]; k++) {
+                parent[chunkPairs[c][k]] = chunkPairs[c][k];
+            }
+        }
+        for (int c = 0; c < chunkPairCount.length; c++) {
+            for (int k = 0; k < chunkPairCount[c]; k++) {
+                union(chunkPairs[c][2 * k], chunkPairs[c][2 * k + 1]);
+            }
+            involved += 2 * chunkPairCount[c];
+        }
+        if (members.length < involved) {
+            members = new long[involved];
+        }
+
+        // Sort the bodies in pairs by cluster, then index, dropping repeats
+        int count = 0;
+        for (int c = 0; c < chunkPairCount.length; c++) {
+            for (int k = 0; k < 2 * chunkPairCount[c]; k++) {
+                int b = chunkPairs[c][k];
+                members[count++] = (long) find(b) << 32 | b;
+            }
+        }
+        Arrays.sort(members, 0, count);
+
+        int removed = 0;
+        int start = 0;
+        while (start < count) {
+            int end = start;
+            while (end < count && members[end] >>> 32 == members[start] >>> 32) {
+                end++;
+            }
+            int keep = (int) members[start];
+            double m = 0, mx = 0, my = 0, px = 0, py = 0, ax = 0, ay = 0;
+            double heaviest = -1;
+            double sign = 1;
+            int level = 0;
+            int last = -1;
+            for (int k = start; k < end; k++) {
+                int b = (int) members[k];
+                if (b == last) {
+                    continue;
+                }
+                last = b;
+                double bm = bodies.mass[b];
+                m += bm;
+                mx += bm * bodies.xPos[b];
+                my += bm * bodies.yPos[b];
+                px += bm * bodies.xVel[b];
+                py += bm * bodies.yVel[b];
+                ax += bm * bodies.xAcc[b];
+                ay += bm * bodies.yAcc[b];
+                level = Math.max(level, bodies.level[b]);
+                if (bm > heaviest) {
+                    heaviest = bm;
+                    sign = Math.signum(bodies.radius[b]) < 0 ? -1 : 1;
+                }
+                if (b != keep) {
+                    newIndex[b] = Quad.NONE;
+                    removed++;
+                }
+            }
+            if (m > 0) {
+                bodies.xPos[keep] = mx / m;
+                bodies.yPos[keep] = my / m;
+                bodies.xVel[keep] = px / m;
+                bodies.yVel[keep] = py / m;
+                bodies.xAcc[keep] = ax / m;
+                bodies.yAcc[keep] = ay / m;
+            }
+            // Mass goes with area, so the merged radius keeps the total mass
+            bodies.setRadius(keep, sign * Math.sqrt(m / Math.PI));
+            bodies.level[keep] = level;
+            start = end;
+        }
+        return removed;
+    }
+
+    private int find(int b) {
+        while (parent[b] != b) {
+            parent[b] = parent[parent[b]];
+            b = parent[b];
+        }
+        return b;
+    }
+
+    // Joins the clusters of a and b under the lower root, so roots don't depend on pair order
+    private void union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        } else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+
+    // Moves the surviving bodies down over the removed ones. Each chunk counts its survivors,
+    // so every chunk knows where its bodies go and can copy them into the spare arrays alone
+    private void compact(int n, int kept) {
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        int[] starts = new int[chunks + 1];
+        pool.invoke(new ParallelRange(c -> {
+            int to = Math.min(n, (c + 1) * CHUNK);
+            int count = 0;
+            for (int i = c * CHUNK; i < to; i++) {
+                if (newIndex[i] != Quad.NONE) {
+                    count++;
+                }
+            }
+            starts[c + 1] = count;
+        }, 0, chunks));
+        for (int c = 0; c < chunks; c++) {
+            starts[c + 1] += starts[c];
+        }
+
+        int capacity = bodies.xPos.length;
+        if (spareRadius.length != capacity) {
+            spareRadius = new double[capacity];
+            spareMass = new double[capacity];
+            spareXAcc = new double[capacity];
+            spareYAcc = new double[capacity];
+            spareLevel = new int[capacity];
+        }
+        pool.invoke(new ParallelRange(c -> {
+            int to = Math.min(n, (c + 1) * CHUNK);
+            int at = starts[c];
+            for (int i = c * CHUNK; i < to; i++) {
+                if (newIndex[i] != Quad.NONE) {
+                    bodies.nextXPos[at] = bodies.xPos[i];
+                    bodies.nextYPos[at] = bodies.yPos[i];
+                    bodies.nextXVel[at] = bodies.xVel[i];
+                    bodies.nextYVel[at] = bodies.yVel[i];
+                    spareRadius[at] = bodies.radius[i];
+                    spareMass[at] = bodies.mass[i];
+                    spareXAcc[at] = bodies.xAcc[i];
+                    spareYAcc[at] = bodies.yAcc[i];
+                    spareLevel[at] = bodies.level[i];
+                    at++;
+                }
+            }
+        }, 0, chunks));
+
+        bodies.swap();
+        double[] t = bodies.radius;
+        bodies.radius = spareRadius;
+        spareRadius = t;
+        t = bodies.mass;
+        bodies.mass = spareMass;
+        spareMass = t;
+        t = bodies.xAcc;
+        bodies.xAcc = spareXAcc;
+        spareXAcc = t;
+        t = bodies.yAcc;
+        bodies.yAcc = spareYAcc;
+        spareYAcc = t;
+        int[] l = bodies.level;
+        bodies.level = spareLevel;
+        spareLevel = l;
+        bodies.size = kept;
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// One process of a distributed run, started by BHDistributed with the launcher's port as its only
+// argument. Each worker owns the bodies on one stretch of the Morton curve through the bodies'
+// bounding square. Every step it sends each other worker the locally essential tree for that
+// worker's bounding box: the quads and bodies of its own tree that would pull on anything in the
+// box, opened as a group walk would open them. The worker appends what it receives as massive
+// ghost bodies, builds one tree over both, and steps only its own bodies. Every so often the
+// workers sum how many interactions each part of the curve cost and move the splits to even out
+// the work.
+public class DistributedWorker {
+    static final int BUCKET_BITS = 14;  // The curve is balanced in 2^BUCKET_BITS pieces
+    private static final int BODY_BYTES = 4 + 6 * 8;  // Id, position, velocity, radius and mass
+    private static final int CHUNK = 4096;  // Local bodies per integration task
+    private static final int GROUP_CHUNK = 16;  // Groups per force task
+    private static final ThreadLocal<InteractionList> LISTS = ThreadLocal.withInitial(InteractionList::new);
+
+    private final int rank;
+    private final int workers;
+    private final PeerMesh mesh;
+    private final ForkJoinPool pool;
+    private final BodyStore bodies;
+    private final Quad root;
+    private final MortonBuilder builder;
+    private final InteractionList essential = new InteractionList();
+    private int local;  // Bodies this worker owns; ghosts follow them in the store
+    private int[] ids;  // Index of each owned body in the whole run
+    private int[] work;  // Interactions each owned body took in the last force pass
+    private int[] mark;
+    private int stamp;
+    private long[] chunkInteractions = new long[0];
+    private ByteBuffer[] out;
+    private final double[][] boxes;  // Every worker's bounding box, or NaNs when it has no bodies
+
+    // Totals over the run
+    long treeNanos;
+    long exchangeNanos;  // Building and trading essential trees and boxes
+    long forceNanos;
+    long integrateNanos;
+    long balanceNanos;
+    long interactions;
+    long ghosts;
+    long migrated;
+    long lastWork;  // Interactions in the last step
+
+    DistributedWorker(int rank, PeerMesh mesh, int threads, BodyStore bodies, int[] ids) {
+        this.rank = rank;
+        this.mesh = mesh;
+        this.workers = mesh.size();
+        this.bodies = bodies;
+        this.ids = ids;
+        local = bodies.size();
+        pool = new ForkJoinPool(threads);
+        root = new Quad(bodies);
+        builder = new MortonBuilder(bodies, pool);
+        work = new int[Math.max(local, 1)];
+        Arrays.fill(work, 1);
+        mark = new int[0];
+        out = new ByteBuffer[workers];
+        boxes = new double[workers][4];
+    }
+
+    // Trades bounding boxes, moves bodies to their owners when rebalance is set, then steps once
+    void step(boolean rebalance) throws IOException {
+        long start = System.nanoTime();
+        exchangeBoxes();
+        exchangeNanos += System.nanoTime() - start;
+        if (rebalance) {
+            long balanceStart = System.nanoTime();
+            rebalance();
+            exchangeBoxes();
+            balanceNanos += System.nanoTime() - balanceStart;
+        }
+
+        // Essential trees from the local bodies alone
+        long treeStart = System.nanoTime();
+        build(local);
+        long exchangeStart = System.nanoTime();
+        treeNanos += exchangeStart - treeStart;
+        for (int j = 0; j < workers; j++) {
+            if (j == rank) {
+                continue;
+            }
+            double[] box = boxes[j];
+            if (local == 0 || Double.isNaN(box[0])) {
+                out[j] = buffer(j, 0).flip();
+                continue;
+            }
+            root.interactionsOfBox(box[0], box[1], box[2], box[3], essential);
+            ByteBuffer b = buffer(j, essential.size * 24);
+            for (int k = 0; k < essential.size; k++) {
+                b.putDouble(essential.mass[k]).putDouble(essential.xPos[k]).putDouble(essential.yPos[k]);
+            }
+            b.flip();
+        }
+        ByteBuffer[] in = mesh.exchange(out);
+        for (int j = 0; j < workers; j++) {
+            if (j == rank) {
+                continue;
+            }
+            ByteBuffer b = in[j];
+            while (b.hasRemaining()) {
+                double m = b.getDouble();
+                // Ghosts are never stepped, so their radius doesn't matter
+                int g = bodies.add(b.getDouble(), b.getDouble(), 0, 0, 0);
+                bodies.mass[g] = m;
+            }
+        }
+        ghosts += bodies.size() - local;
+        long forceStart = System.nanoTime();
+        exchangeNanos += forceStart - exchangeStart;
+
+        build(bodies.size());
+        long walkStart = System.nanoTime();
+        treeNanos += walkStart - forceStart;
+        forces();
+        long integrateStart = System.nanoTime();
+        forceNanos += integrateStart - walkStart;
+        integrate();
+        bodies.size = local;
+        integrateNanos += System.nanoTime() - integrateStart;
+    }
+
+    // Builds the tree over the first count bodies, with the root fitted as Simulation fits it
+    private void build(int count) {
+        bodies.size = count;
+        if (count == 0) {
+            root.reset(BHMain.WIDTH / 2.0, BHMain.HEIGHT / 2.0, BHMain.WIDTH);
+            return;
+        }
+        BoundsTask box = new BoundsTask(bodies, 0, count);
+        pool.invoke(box);
+        double xMid = BHMain.WIDTH / 2.0;
+        double yMid = BHMain.HEIGHT / 2.0;
+        double length = BHMain.WIDTH;
+        double side = Math.max(box.maxX - box.minX, box.maxY - box.minY);
+        if (!box.isEmpty() && Double.isFinite(side)) {
+            xMid = (box.minX + box.maxX) / 2;
+            yMid = (box.minY + box.maxY) / 2;
+            length = Math.max(side * Simulation.ROOT_PADDING, Simulation.MIN_ROOT);
+        }
+        builder.build(root, xMid, yMid, length);
+        root.measure();
+    }
+
+    // Accelerations of the owned bodies, one walk per group that holds any, recording each
+    // body's interaction count as its work
+    private void forces() {
+        if (local == 0) {
+            lastWork = 0;
+            return;
+        }
+        if (mark.length < bodies.size()) {
+            mark = new int[bodies.size() * 3 / 2];
+            stamp = 0;
+        }
+        stamp++;
+        for (int i = 0; i < local; i++) {
+            mark[i] = stamp;
+        }
+        if (work.length < local) {
+            work = new int[local * 3 / 2];
+        }
+        // Groups only miss bodies the tree could not place; then walk per body instead
+        boolean grouped = root.findGroups(Quad.GROUP_SIZE) == bodies.size();
+        int items = grouped ? root.groupCount : local;
+        int size = grouped ? GROUP_CHUNK : CHUNK / 16;
+        int chunks = (items + size - 1) / size;
+        if (chunkInteractions.length < chunks) {
+            chunkInteractions = new long[chunks];
+        }
+        pool.invoke(new ParallelRange(c -> {
+            InteractionList list = LISTS.get();
+            long done = 0;
+            int to = Math.min(items, (c + 1) * size);
+            for (int k = c * size; k < to; k++) {
+                if (!grouped) {
+                    root.interactionsOf(k, list);
+                    bodies.accelerate(k, list);
+                    work[k] = list.size;
+                    done += list.size;
+                    continue;
+                }
+                int g = root.groups[k];
+                if (!root.hasMarked(g, mark, stamp)) {
+                    continue;
+                }
+                root.interactionsOfGroup(g, list);
+                for (int m = 0; m < list.memberCount; m++) {
+                    int i = list.members[m];
+                    if (mark[i] == stamp) {
+                        bodies.accelerate(i, list);
+                        work[i] = list.memberInteractions();
+                        done += list.memberInteractions();
+                    }
+                }
+            }
+            chunkInteractions[c] = done;
+        }, 0, chunks));
+        lastWork = 0;
+        for (int c = 0; c < chunks; c++) {
+            lastWork += chunkInteractions[c];
+        }
+        interactions += lastWork;
+    }
+
+    // Euler step matching Simulation's: positions move with the old velocities
+    private void integrate() {
+        int chunks = (local + CHUNK - 1) / CHUNK;
+        if (chunks == 0) {
+            return;
+        }
+        pool.invoke(new ParallelRange(c -> {
+            int to = Math.min(local, (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < to; i++) {
+                bodies.xPos[i] += Body.DT * bodies.xVel[i];
+                bodies.yPos[i] += Body.DT * bodies.yVel[i];
+                bodies.xVel[i] += Body.DT * bodies.xAcc[i];
+                bodies.yVel[i] += Body.DT * bodies.yAcc[i];
+            }
+        }, 0, chunks));
+    }
+
+    // Sends this worker's bounding box to the others and fills in theirs
+    private void exchangeBoxes() throws IOException {
+        BoundsTask box = new BoundsTask(bodies, 0, local);
+        if (local > 0) {
+            pool.invoke(box);
+        }
+        double[] own = boxes[rank];
+        if (box.isEmpty()) {
+            Arrays.fill(own, Double.NaN);
+        } else {
+            own[0] = box.minX;
+            own[1] = box.minY;
+            own[2] = box.maxX;
+            own[3] = box.maxY;
+        }
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                out[j] = buffer(j, 32).putDouble(own[0]).putDouble(own[1]).putDouble(own[2]).putDouble(own[3]).flip();
+            }
+        }
+        ByteBuffer[] in = mesh.exchange(out);
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                for (int k = 0; k < 4; k++) {
+                    boxes[j][k] = in[j].getDouble();
+                }
+            }
+        }
+    }
+
+    // Sums every worker's work per piece of the Morton curve through the union of the boxes,
+    // cuts the curve into stretches of equal work, and sends each body to the worker that owns
+    // its stretch. Every worker cuts the same sums the same way, so they agree on the owners
+    private void rebalance() throws IOException {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (double[] box : boxes) {
+            if (!Double.isNaN(box[0])) {
+                minX = Math.min(minX, box[0]);
+                minY = Math.min(minY, box[1]);
+                maxX = Math.max(maxX, box[2]);
+                maxY = Math.max(maxY, box[3]);
+            }
+        }
+        if (!(minX <= maxX)) {
+            return;
+        }
+        double length = Math.max(Math.max(maxX - minX, maxY - minY) * Simulation.ROOT_PADDING, Simulation.MIN_ROOT);
+        double x0 = (minX + maxX) / 2 - length / 2;
+        double y1 = (minY + maxY) / 2 + length / 2;
+        double scale = (1L << MortonBuilder.LEVELS) / length;
+        int buckets = 1 << BUCKET_BITS;
+        int shift = 2 * MortonBuilder.LEVELS - BUCKET_BITS;
+        int[] bucketOf = new int[local];
+        long[] total = new long[buckets];
+        for (int i = 0; i < local; i++) {
+            long key = MortonBuilder.key(bodies.xPos[i], bodies.yPos[i], x0, y1, length, scale);
+            bucketOf[i] = (int) Math.min(key >>> shift, buckets - 1);
+            total[bucketOf[i]] += Math.max(work[i], 1);
+        }
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                ByteBuffer b = buffer(j, 8 * buckets);
+                b.asLongBuffer().put(total);
+                out[j] = b.limit(8 * buckets);
+            }
+        }
+        ByteBuffer[] in = mesh.exchange(out);
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                for (int k = 0; k < buckets; k++) {
+                    total[k] += in[j].getLong();
+                }
+            }
+        }
+
+        // Worker w owns the buckets where the work before them is within its share
+        long sum = 0;
+        for (long t : total) {
+            sum += t;
+        }
+        int[] owner = new int[buckets];
+        long before = 0;
+        for (int k = 0; k < buckets; k++) {
+            owner[k] = (int) Math.min(workers - 1, sum > 0 ? (before + total[k] / 2) * workers / sum : 0);
+            before += total[k];
+        }
+
+        int[] sending = new int[workers];
+        for (int i = 0; i < local; i++) {
+            sending[owner[bucketOf[i]]]++;
+        }
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                out[j] = buffer(j, sending[j] * BODY_BYTES);
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < local; i++) {
+            int o = owner[bucketOf[i]];
+            if (o != rank) {
+                out[o].putInt(ids[i]).putDouble(bodies.xPos[i]).putDouble(bodies.yPos[i]).putDouble(bodies.xVel[i])
+                        .putDouble(bodies.yVel[i]).putDouble(bodies.radius[i]).putDouble(bodies.mass[i]);
+                continue;
+            }
+            bodies.xPos[kept] = bodies.xPos[i];
+            bodies.yPos[kept] = bodies.yPos[i];
+            bodies.xVel[kept] = bodies.xVel[i];
+            bodies.yVel[kept] = bodies.yVel[i];
+            bodies.radius[kept] = bodies.radius[i];
+            bodies.mass[kept] = bodies.mass[i];
+            ids[kept] = ids[i];
+            work[kept] = work[i];
+            kept++;
+        }
+        migrated += local - kept;
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                out[j].flip();
+            }
+        }
+        in = mesh.exchange(out);
+        bodies.size = kept;
+        for (int j = 0; j < workers; j++) {
+            if (j == rank) {
+                continue;
+            }
+            ByteBuffer b = in[j];
+            while (b.hasRemaining()) {
+                int id = b.getInt();
+                int i = bodies.add(b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+                bodies.mass[i] = b.getDouble();
+                if (i >= ids.length) {
+                    ids = Arrays.copyOf(ids, Math.max(i + 1, ids.length * 3 / 2));
+                }
+                if (i >= work.length) {
+                    work = Arrays.copyOf(work, ids.length);
+                }
+                ids[i] = id;
+                work[i] = 1;
+            }
+        }
+        local = bodies.size();
+    }
+
+    // Returns once every worker has called it
+    void barrier() throws IOException {
+        for (int j = 0; j < workers; j++) {
+            if (j != rank) {
+                out[j] = buffer(j, 0).flip();
+            }
+        }
+        mesh.exchange(out);
+    }
+
+    // Outgoing buffer for worker j, cleared and big enough for bytes
+    private ByteBuffer buffer(int j, int bytes) {
+        if (out[j] == null || out[j].capacity() < bytes) {
+            out[j] = ByteBuffer.allocate(Math.max(bytes, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        out[j].clear();
+        return out[j];
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int launcherPort = Integer.parseInt(args[0]);
+        try (SocketChannel launcher = SocketChannel.open(new InetSocketAddress(PeerMesh.HOST, launcherPort));
+             ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(PeerMesh.HOST, 0))) {
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            PeerMesh.send(launcher, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, port));
+
+            // Rank, worker count, bodies, steps, threads, rebalance interval, seed, then every port
+            ByteBuffer config = PeerMesh.receive(launcher);
+            int rank = config.getInt();
+            int workers = config.getInt();
+            int n = config.getInt();
+            int steps = config.getInt();
+            int threads = config.getInt();
+            int rebalanceEvery = config.getInt();
+            long seed = config.getLong();
+            int[] ports = new int[workers];
+            for (int j = 0; j < workers; j++) {
+                ports[j] = config.getInt();
+            }
+
+            // Start from an even split by index; the first rebalance sorts bodies onto the curve
+            int from = (int) ((long) n * rank / workers);
+            int to = (int) ((long) n * (rank + 1) / workers);
+            BodyStore bodies = new BodyStore(to - from);
+            int[] ids = new int[Math.max(to - from, 1)];
+            for (int i = from; i < to; i++) {
+                ids[i - from] = i;
+                BHDistributed.addBody(bodies, seed, i);
+            }
+
+            try (PeerMesh mesh = new PeerMesh(rank, ports, server)) {
+                DistributedWorker worker = new DistributedWorker(rank, mesh, threads, bodies, ids);
+                worker.barrier();  // Start the clocks together
+                long start = System.nanoTime();
+                for (int s = 0; s < steps; s++) {
+                    worker.step(s % rebalanceEvery == 0);
+                }
+                long loopNanos = System.nanoTime() - start;
+                PeerMesh.send(launcher, worker.results(loopNanos));
+                worker.pool.shutdown();
+            }
+        }
+    }
+
+    // Timings and counters followed by the id, position and velocity of every owned body
+    private ByteBuffer results(long loopNanos) {
+        ByteBuffer b = ByteBuffer.allocate(8 + 10 * 8 + local * (4 + 4 * 8)).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(rank).putInt(local);
+        b.putLong(loopNanos).putLong(treeNanos).putLong(exchangeNanos).putLong(forceNanos).putLong(integrateNanos)
+                .putLong(balanceNanos).putLong(interactions).putLong(ghosts).putLong(migrated).putLong(lastWork);
+        for (int i = 0; i < local; i++) {
+            b.putInt(ids[i]).putDouble(bodies.xPos[i]).putDouble(bodies.yPos[i]).putDouble(bodies.xVel[i]).putDouble(bodies.yVel[i]);
+        }
+        b.flip();
+        return b;
+    }
+}
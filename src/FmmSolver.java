@@ -0,0 +1,494 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Fast multipole solver on the same quadtree as Barnes-Hut. Cells hold multipole moments about
+// their center of mass and local expansions about their center, both as Cartesian Taylor
+// series of order p. A dual tree walk turns well separated cell pairs into multipole-to-local
+// translations and sums everything else directly, so the work grows linearly with N.
+//
+// The simulation's force is softened inverse square in the plane, F = G m M / (r^2 + eps^2),
+// which is not a harmonic 2D kernel, so expansions are taken of its actual potential
+// atan(r / eps) / eps rather than as complex logarithms. Direct sums use each target's own
+// softening; far field terms use one softening for the whole system, taken from the mean body
+// radius, which is exact whenever the bodies share a radius.
+public class FmmSolver {
+    static final int MAX_ORDER = 12;
+    static final int DEFAULT_ORDER = 4;
+    static final double DEFAULT_THETA = 0.5;  // Largest (size A + size B) / distance for a far field pair
+    static final int LEAF_SIZE = 32;  // Cells with at most this many bodies are summed directly
+    private static final int FORK_SIZE = 4096;  // Cells with more bodies than this are split across tasks
+
+    private static final double[] FACTORIAL = new double[2 * MAX_ORDER + 2];
+    private static final double[][] BINOMIAL = new double[2 * MAX_ORDER + 2][];
+    private static final double[][] HERMITE = new double[MAX_ORDER + 1][];  // a! / (i! (a - 2i)!)
+
+    static {
+        FACTORIAL[0] = 1;
+        for (int i = 1; i < FACTORIAL.length; i++) {
+            FACTORIAL[i] = FACTORIAL[i - 1] * i;
+        }
+        for (int n = 0; n < BINOMIAL.length; n++) {
+            BINOMIAL[n] = new double[n + 1];
+            for (int k = 0; k <= n; k++) {
+                BINOMIAL[n][k] = FACTORIAL[n] / (FACTORIAL[k] * FACTORIAL[n - k]);
+            }
+        }
+        for (int a = 0; a <= MAX_ORDER; a++) {
+            HERMITE[a] = new double[a / 2 + 1];
+            for (int i = 0; i <= a / 2; i++) {
+                HERMITE[a][i] = FACTORIAL[a] / (FACTORIAL[i] * FACTORIAL[a - 2 * i]);
+            }
+        }
+    }
+
+    private final BodyStore bodies;
+    private final Quad tree;
+    private final ForkJoinPool pool;
+    private final int order;
+    private final int terms;  // Coefficients per expansion
+    private final ThreadLocal<Workspace> workspaces;
+    private double theta = DEFAULT_THETA;
+    private double epsSq;  // Far field softening squared
+
+    // Per node expansions, terms coefficients each, indexed by index(a, b)
+    private double[] multipole = new double[0];
+    private double[] local = new double[0];
+
+    // Bodies of each direct-sum cell, laid out contiguously in members
+    private int[] memberStart = new int[0];
+    private int[] memberCount = new int[0];
+    private int[] members = new int[0];
+
+    double[] xAcc = new double[0];
+    double[] yAcc = new double[0];
+
+    public FmmSolver(BodyStore bodies, Quad tree, ForkJoinPool pool, int order) {
+        if (order < 1 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("FMM order must be between 1 and " + MAX_ORDER + ", got " + order);
+        }
+        this.bodies = bodies;
+        this.tree = tree;
+        this.pool = pool;
+        this.order = order;
+        terms = index(0, order) + 1;
+        workspaces = ThreadLocal.withInitial(() -> new Workspace(order));
+    }
+
+    public void setTheta(double theta) {
+        this.theta = theta;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    // Computes every body's acceleration into xAcc and yAcc from the current tree. Returns the
+    // number of interactions: body-body pairs plus multipole-to-local translations
+    public long computeAccelerations() {
+        int n = bodies.size();
+        ensureCapacity(n);
+        Arrays.fill(xAcc, 0, n, 0);
+        Arrays.fill(yAcc, 0, n, 0);
+        if (n == 0) {
+            return 0;
+        }
+
+        double radius = 0;
+        for (int i = 0; i < n; i++) {
+            radius += Math.abs(bodies.radius[i]);
+        }
+        double eps = Body.DAMP * radius / n;
+        epsSq = eps * eps;
+
+        pool.invoke(new Upward(0, 0));
+        Interact root = new Interact(0, 0);
+        pool.invoke(root);
+        pool.invoke(new Downward(0));
+        return root.interactions;
+    }
+
+    // Steps every body with the accelerations from computeAccelerations, into the back buffer
+    public long step() {
+        long count = computeAccelerations();
+        int n = bodies.size();
+        int chunks = (n + ForceTask.CHUNK - 1) / ForceTask.CHUNK;
+        if (chunks > 0) {
+            pool.invoke(new ParallelRange(chunk -> {
+                int to = Math.min(n, (chunk + 1) * ForceTask.CHUNK);
+                for (int i = chunk * ForceTask.CHUNK; i < to; i++) {
+                    bodies.nextXVel[i] = bodies.xVel[i] + Body.DT * xAcc[i];
+                    bodies.nextYVel[i] = bodies.yVel[i] + Body.DT * yAcc[i];
+                    bodies.updatePosition(i);
+                }
+            }, 0, chunks));
+        }
+        return count;
+    }
+
+    // Position of coefficient (a, b) in an expansion: grouped by total order a + b
+    private static int index(int a, int b) {
+        int k = a + b;
+        return k * (k + 1) / 2 + b;
+    }
+
+    private boolean isLeaf(int n) {
+        return tree.child[n] == Quad.NONE || tree.count[n] <= LEAF_SIZE;
+    }
+
+    private boolean wellSeparated(int a, int b) {
+        double dx = tree.xMid[a] - tree.xCom[b];
+        double dy = tree.yMid[a] - tree.yCom[b];
+        double sizeA = tree.length[a] * Math.sqrt(0.5);
+        double sizeB = tree.length[b] * Math.sqrt(0.5)
+                + Math.hypot(tree.xCom[b] - tree.xMid[b], tree.yCom[b] - tree.yMid[b]);
+        return (sizeA + sizeB) < theta * Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Walks down to the direct-sum cells, lists their bodies and forms their multipoles, then
+    // shifts the multipoles up to every ancestor
+    private class Upward extends RecursiveAction {
+        private final int node;
+        private final int start;  // First slot of this cell's bodies in members
+
+        Upward(int node, int start) {
+            this.node = node;
+            this.start = start;
+        }
+
+        @Override
+        protected void compute() {
+            Arrays.fill(local, node * terms, (node + 1) * terms, 0);
+            Arrays.fill(multipole, node * terms, (node + 1) * terms, 0);
+            if (isLeaf(node)) {
+                memberStart[node] = start;
+                memberCount[node] = gather(node, start) - start;
+                particleToMultipole(node, workspaces.get());
+                return;
+            }
+            int c = tree.child[node];
+            Upward[] children = new Upward[4];
+            int offset = start;
+            for (int k = 0; k < 4; k++) {
+                children[k] = new Upward(c + k, offset);
+                offset += tree.count[c + k];
+            }
+            if (tree.count[node] > FORK_SIZE) {
+                invokeAll(children);
+            } else {
+                for (Upward u : children) {
+                    u.compute();
+                }
+            }
+            Workspace ws = workspaces.get();
+            for (int k = 0; k < 4; k++) {
+                if (tree.count[c + k] > 0) {
+                    multipoleToMultipole(c + k, node, ws);
+                }
+            }
+        }
+    }
+
+    // Adds the bodies below node to members from slot at on, returning the next free slot
+    private int gather(int node, int at) {
+        if (tree.child[node] == Quad.NONE) {
+            for (int b = tree.first[node]; b != Quad.NONE; b = tree.next[b]) {
+                members[at++] = b;
+            }
+            return at;
+        }
+        int c = tree.child[node];
+        for (int k = 0; k < 4; k++) {
+            at = gather(c + k, at);
+        }
+        return at;
+    }
+
+    // Target driven dual tree walk. Everything it writes belongs to the target cell's subtree,
+    // so sibling target cells can run as separate tasks in any order
+    private class Interact extends RecursiveAction {
+        private final int target;
+        private final int source;
+        long interactions;
+
+        Interact(int target, int source) {
+            this.target = target;
+            this.source = source;
+        }
+
+        @Override
+        protected void compute() {
+            interactions = interact(target, source, workspaces.get());
+        }
+
+        private long interact(int a, int b, Workspace ws) {
+            if (tree.count[a] == 0 || tree.count[b] == 0) {
+                return 0;
+            }
+            if (a != b && wellSeparated(a, b)) {
+                multipoleToLocal(b, a, ws);
+                return 1;
+            }
+            boolean leafA = isLeaf(a);
+            boolean leafB = isLeaf(b);
+            if (leafA && leafB) {
+                return particleToParticle(a, b, ws);
+            }
+            long count = 0;
+            if (leafB || (!leafA && tree.length[a] >= tree.length[b])) {
+                int c = tree.child[a];
+                if (tree.count[a] > FORK_SIZE) {
+                    Interact[] tasks = new Interact[4];
+                    for (int k = 0; k < 4; k++) {
+                        tasks[k] = new Interact(c + k, b);
+                    }
+                    invokeAll(tasks);
+                    for (Interact t : tasks) {
+                        count += t.interactions;
+                    }
+                } else {
+                    for (int k = 0; k < 4; k++) {
+                        count += interact(c + k, b, ws);
+                    }
+                }
+            } else {
+                int c = tree.child[b];
+                for (int k = 0; k < 4; k++) {
+                    count += interact(a, c + k, ws);
+                }
+            }
+            return count;
+        }
+    }
+
+    // Shifts local expansions down to the direct-sum cells and evaluates them at their bodies
+    private class Downward extends RecursiveAction {
+        private final int node;
+
+        Downward(int node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            Workspace ws = workspaces.get();
+            if (isLeaf(node)) {
+                evaluateLocal(node, ws);
+                return;
+            }
+            int c = tree.child[node];
+            Downward[] children = new Downward[4];
+            for (int k = 0; k < 4; k++) {
+                if (tree.count[c + k] > 0) {
+                    localToLocal(node, c + k, ws);
+                }
+                children[k] = new Downward(c + k);
+            }
+            if (tree.count[node] > FORK_SIZE) {
+                invokeAll(children);
+            } else {
+                for (Downward d : children) {
+                    d.compute();
+                }
+            }
+        }
+    }
+
+    // Moments m (dx^a / a!) (dy^b / b!) of a cell's bodies about its center of mass
+    private void particleToMultipole(int node, Workspace ws) {
+        int base = node * terms;
+        double xc = tree.xCom[node];
+        double yc = tree.yCom[node];
+        for (int k = memberStart[node]; k < memberStart[node] + memberCount[node]; k++) {
+            int i = members[k];
+            ws.powers(bodies.xPos[i] - xc, bodies.yPos[i] - yc, order);
+            double m = bodies.mass[i];
+            for (int a = 0; a <= order; a++) {
+                for (int b = 0; a + b <= order; b++) {
+                    multipole[base + index(a, b)] += m * ws.xPow[a] * ws.yPow[b] / (FACTORIAL[a] * FACTORIAL[b]);
+                }
+            }
+        }
+    }
+
+    private void multipoleToMultipole(int from, int to, Workspace ws) {
+        int src = from * terms;
+        int dst = to * terms;
+        ws.powers(tree.xCom[from] - tree.xCom[to], tree.yCom[from] - tree.yCom[to], order);
+        for (int a = 0; a <= order; a++) {
+            for (int b = 0; a + b <= order; b++) {
+                double sum = 0;
+                for (int i = 0; i <= a; i++) {
+                    for (int j = 0; j <= b; j++) {
+                        sum += multipole[src + index(i, j)] * ws.xPow[a - i] * ws.yPow[b - j]
+                                / (FACTORIAL[a - i] * FACTORIAL[b - j]);
+                    }
+                }
+                multipole[dst + index(a, b)] += sum;
+            }
+        }
+    }
+
+    // L(c, d) += 1 / (c! d!) sum (-1)^(a+b) M(a, b) T(a + c, b + d), T being the derivatives
+    // of the potential at the offset between the two expansion centers
+    private void multipoleToLocal(int from, int to, Workspace ws) {
+        int src = from * terms;
+        int dst = to * terms;
+        ws.derivatives(tree.xMid[to] - tree.xCom[from], tree.yMid[to] - tree.yCom[from], order, epsSq);
+        for (int c = 0; c <= order; c++) {
+            for (int d = 0; c + d <= order; d++) {
+                if (c + d == 0) {
+                    continue;  // The constant term carries no force
+                }
+                double sum = 0;
+                for (int a = 0; a + c + d <= order; a++) {
+                    for (int b = 0; a + b + c + d <= order; b++) {
+                        double term = multipole[src + index(a, b)] * ws.tensor[index(a + c, b + d)];
+                        sum += ((a + b) & 1) == 0 ? term : -term;
+                    }
+                }
+                local[dst + index(c, d)] += sum / (FACTORIAL[c] * FACTORIAL[d]);
+            }
+        }
+    }
+
+    private void localToLocal(int from, int to, Workspace ws) {
+        int src = from * terms;
+        int dst = to * terms;
+        ws.powers(tree.xMid[to] - tree.xMid[from], tree.yMid[to] - tree.yMid[from], order);
+        for (int c = 0; c <= order; c++) {
+            for (int d = 0; c + d <= order; d++) {
+                double sum = 0;
+                for (int i = c; i <= order; i++) {
+                    for (int j = d; i + j <= order; j++) {
+                        sum += local[src + index(i, j)] * BINOMIAL[i][c] * BINOMIAL[j][d]
+                                * ws.xPow[i - c] * ws.yPow[j - d];
+                    }
+                }
+                local[dst + index(c, d)] += sum;
+            }
+        }
+    }
+
+    // Adds minus the gradient of the cell's local expansion to each of its bodies
+    private void evaluateLocal(int node, Workspace ws) {
+        int base = node * terms;
+        for (int k = memberStart[node]; k < memberStart[node] + memberCount[node]; k++) {
+            int i = members[k];
+            ws.powers(bodies.xPos[i] - tree.xMid[node], bodies.yPos[i] - tree.yMid[node], order);
+            double gx = 0;
+            double gy = 0;
+            for (int c = 0; c <= order; c++) {
+                for (int d = 0; c + d <= order; d++) {
+                    double l = local[base + index(c, d)];
+                    if (c > 0) {
+                        gx += c * l * ws.xPow[c - 1] * ws.yPow[d];
+                    }
+                    if (d > 0) {
+                        gy += d * l * ws.xPow[c] * ws.yPow[d - 1];
+                    }
+                }
+            }
+            xAcc[i] -= Body.G * gx;
+            yAcc[i] -= Body.G * gy;
+        }
+    }
+
+    // Direct softened sum from every body of source cell b onto every body of target cell a
+    private long particleToParticle(int a, int b, Workspace ws) {
+        InteractionList list = ws.list;
+        list.clear();
+        for (int k = memberStart[b]; k < memberStart[b] + memberCount[b]; k++) {
+            int j = members[k];
+            list.add(bodies.mass[j], bodies.xPos[j], bodies.yPos[j]);
+        }
+        for (int k = memberStart[a]; k < memberStart[a] + memberCount[a]; k++) {
+            int i = members[k];
+            double eps = Body.DAMP * bodies.radius[i];
+            list.accelerate(bodies.xPos[i], bodies.yPos[i], eps * eps);
+            xAcc[i] += list.ax;
+            yAcc[i] += list.ay;
+        }
+        return (long) memberCount[a] * memberCount[b];
+    }
+
+    private void ensureCapacity(int n) {
+        int nodes = tree.xMid.length;
+        if (memberStart.length < nodes) {
+            memberStart = new int[nodes];
+            memberCount = new int[nodes];
+            multipole = new double[nodes * terms];
+            local = new double[nodes * terms];
+        }
+        if (xAcc.length < n) {
+            xAcc = new double[bodies.xPos.length];
+            yAcc = new double[bodies.xPos.length];
+            members = new int[bodies.xPos.length];
+        }
+    }
+
+    // Per thread scratch space
+    private static class Workspace {
+        final double[] xPow;
+        final double[] yPow;
+        final double[] tensor;  // Potential derivatives T(a, b), indexed by index(a, b)
+        private final double[] g;  // Derivatives of w^(-1/2)
+        private final double[] h;  // Derivatives of (w + eps^2)^(-1)
+        private final double[] dw;  // Derivatives of the potential with respect to w = r^2
+        final InteractionList list = new InteractionList();
+
+        Workspace(int order) {
+            xPow = new double[order + 1];
+            yPow = new double[order + 1];
+            tensor = new double[index(0, order) + 1];
+            g = new double[order + 1];
+            h = new double[order + 1];
+            dw = new double[order + 1];
+        }
+
+        void powers(double x, double y, int order) {
+            xPow[0] = 1;
+            yPow[0] = 1;
+            for (int i = 1; i <= order; i++) {
+                xPow[i] = xPow[i - 1] * x;
+                yPow[i] = yPow[i - 1] * y;
+            }
+        }
+
+        // Cartesian derivatives up to the given order of the potential atan(r / eps) / eps at
+        // (x, y). As a function of w = x^2 + y^2 its first derivative is w^(-1/2) (w + eps^2)^(-1) / 2,
+        // so higher ones follow from Leibniz's rule, and the chain rule through w gives
+        // T(a, b) = sum over i, j of H(a, i) H(b, j) (2x)^(a-2i) (2y)^(b-2j) dw(a + b - i - j)
+        void derivatives(double x, double y, int order, double epsSq) {
+            double w = x * x + y * y;
+            g[0] = 1 / Math.sqrt(w);
+            h[0] = 1 / (w + epsSq);
+            for (int j = 1; j < order; j++) {
+                g[j] = g[j - 1] * -(2 * j - 1) / (2 * w);
+                h[j] = h[j - 1] * -j / (w + epsSq);
+            }
+            for (int k = 0; k < order; k++) {
+                double sum = 0;
+                for (int j = 0; j <= k; j++) {
+                    sum += BINOMIAL[k][j] * g[j] * h[k - j];
+                }
+                dw[k + 1] = 0.5 * sum;
+            }
+            powers(2 * x, 2 * y, order);
+            for (int a = 0; a <= order; a++) {
+                for (int b = 0; a + b <= order; b++) {
+                    if (a + b == 0) {
+                        continue;
+                    }
+                    double sum = 0;
+                    for (int i = 0; 2 * i <= a; i++) {
+                        for (int j = 0; 2 * j <= b; j++) {
+                            sum += HERMITE[a][i] * HERMITE[b][j] * xPow[a - 2 * i] * yPow[b - 2 * j] * dw[a + b - i - j];
+                        }
+                    }
+                    tensor[index(a, b)] = sum;
+                }
+            }
+        }
+    }
+}
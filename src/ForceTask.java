@@ -0,0 +1,78 @@
+import java.util.concurrent.CountedCompleter;
+
+// Fork/join step over a range of bodies. Each body walks the tree read-only and writes its
+// new velocity and position into the back buffer, so the result does not depend on how the
+// range is split between threads. Like ParallelRange, a task can be run again over a new
+// range, reusing its subtasks.
+class ForceTask extends CountedCompleter<Void> {
+    static final int CHUNK = 512;  // Bodies per leaf task
+    private static final ThreadLocal<InteractionList> LISTS = ThreadLocal.withInitial(InteractionList::new);
+    private final BodyStore bodies;
+    private final Quad root;
+    private int from;
+    private int to;
+    private ForceTask left;
+    private ForceTask right;
+    private boolean split;  // Whether this run went to left and right
+    long interactions;  // Body-node interactions performed by this task and its subtasks
+    long nodeVisits;  // Quads their tree walks reached
+
+    // A task to be set with range() before each run through parent
+    ForceTask(CountedCompleter<?> parent, BodyStore bodies, Quad root) {
+        super(parent);
+        this.bodies = bodies;
+        this.root = root;
+    }
+
+    ForceTask(BodyStore bodies, Quad root, int from, int to) {
+        this.bodies = bodies;
+        this.root = root;
+        this.from = from;
+        this.to = to;
+    }
+
+    // Readies this task to run over [from, to), once the last run has finished
+    ForceTask range(int from, int to) {
+        reinitialize();
+        setPendingCount(0);
+        this.from = from;
+        this.to = to;
+        split = false;
+        interactions = 0;
+        nodeVisits = 0;
+        return this;
+    }
+
+    @Override
+    public void compute() {
+        // Forks the right halves and carries on down the left ones in this thread
+        ForceTask t = this;
+        while (t.to - t.from > CHUNK) {
+            int mid = (t.from + t.to) >>> 1;
+            if (t.left == null) {
+                t.left = new ForceTask(t, bodies, root);
+                t.right = new ForceTask(t, bodies, root);
+            }
+            t.split = true;
+            t.setPendingCount(1);
+            t.right.range(mid, t.to).fork();
+            t = t.left.range(t.from, mid);
+        }
+        InteractionList list = LISTS.get();
+        for (int i = t.from; i < t.to; i++) {
+            bodies.beginStep(i);
+            t.interactions += root.updateVelocityOf(i, list);
+            t.nodeVisits += list.visits;
+            bodies.updatePosition(i);
+        }
+        t.tryComplete();
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+        if (split) {
+            interactions = left.interactions + right.interactions;
+            nodeVisits = left.nodeVisits + right.nodeVisits;
+        }
+    }
+}
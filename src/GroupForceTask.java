@@ -0,0 +1,82 @@
+import java.util.concurrent.CountedCompleter;
+
+// Fork/join step over a range of the tree's groups. Each group walks the tree once and applies
+// the shared interaction list to every body in it, writing to the back buffer like ForceTask,
+// and can be run again over a new range the same way.
+class GroupForceTask extends CountedCompleter<Void> {
+    static final int CHUNK = 16;  // Groups per leaf task
+    private static final ThreadLocal<InteractionList> LISTS = ThreadLocal.withInitial(InteractionList::new);
+    private final BodyStore bodies;
+    private final Quad root;
+    private int from;
+    private int to;
+    private GroupForceTask left;
+    private GroupForceTask right;
+    private boolean split;  // Whether this run went to left and right
+    long interactions;  // Body-node interactions performed by this task and its subtasks
+    long nodeVisits;  // Quads their tree walks reached
+
+    // A task to be set with range() before each run through parent
+    GroupForceTask(CountedCompleter<?> parent, BodyStore bodies, Quad root) {
+        super(parent);
+        this.bodies = bodies;
+        this.root = root;
+    }
+
+    GroupForceTask(BodyStore bodies, Quad root, int from, int to) {
+        this.bodies = bodies;
+        this.root = root;
+        this.from = from;
+        this.to = to;
+    }
+
+    // Readies this task to run over groups [from, to), once the last run has finished
+    GroupForceTask range(int from, int to) {
+        reinitialize();
+        setPendingCount(0);
+        this.from = from;
+        this.to = to;
+        split = false;
+        interactions = 0;
+        nodeVisits = 0;
+        return this;
+    }
+
+    @Override
+    public void compute() {
+        // Forks the right halves and carries on down the left ones in this thread
+        GroupForceTask t = this;
+        while (t.to - t.from > CHUNK) {
+            int mid = (t.from + t.to) >>> 1;
+            if (t.left == null) {
+                t.left = new GroupForceTask(t, bodies, root);
+                t.right = new GroupForceTask(t, bodies, root);
+            }
+            t.split = true;
+            t.setPendingCount(1);
+            t.right.range(mid, t.to).fork();
+            t = t.left.range(t.from, mid);
+        }
+        InteractionList list = LISTS.get();
+        for (int g = t.from; g < t.to; g++) {
+            root.interactionsOfGroup(root.groups[g], list);
+            for (int k = 0; k < list.memberCount; k++) {
+                int i = list.members[k];
+                bodies.beginStep(i);
+                bodies.updateVelocity(i, root.walkX(i), root.walkY(i), list);
+                bodies.updatePosition(i);
+            }
+            t.interactions += (long) list.memberInteractions() * list.memberCount;
+            t.nodeVisits += list.visits;
+        }
+        t.tryComplete();
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+        if (split) {
+            interactions = left.interactions + right.interactions;
+            nodeVisits = left.nodeVisits + right.nodeVisits;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.concurrent.ForkJoinPool;
+
+// Starting layouts for the simulation, shared by the windowed and headless entry points. The
+// bodies themselves come from BodyGenerator, so a preset and seed always give the same bodies.
+public class InitialConditions {
+    public static final String[] PRESETS = BodyGenerator.Layout.labels();
+
+    // Fills bodies with n bodies of radius m laid out by the named preset, from the default seed
+    public static void addPreset(BodyStore bodies, String preset, int n, float m) {
+        addPreset(bodies, preset, n, m, BodyGenerator.SEED, ForkJoinPool.commonPool());
+    }
+
+    // As above, drawn from seed and filled on pool
+    public static void addPreset(BodyStore bodies, String preset, int n, double m, long seed, ForkJoinPool pool) {
+        BodyGenerator.generate(bodies, BodyGenerator.Layout.parse(preset), n, m, seed, pool);
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+// Point masses gathered by a tree walk, applied to a body in one tight loop. Each worker thread
+// keeps its own list, so after warm-up a walk doesn't allocate.
+//
+// When the JVM was started with --add-modules jdk.incubator.vector and VectorKernel (in
+// src-vector/, which needs that module to compile) is on the class path, lists of at least one
+// register's worth go through it instead of the scalar loop.
+public class InteractionList {
+    static final double TINY = Double.MIN_NORMAL;  // Keeps 1/sqrt finite for a zero offset
+    static final Kernel VECTOR_KERNEL = vectorKernel();  // Null when either is missing
+    static final boolean VECTOR = VECTOR_KERNEL != null;
+    private static final int VECTOR_MIN = VECTOR ? VECTOR_KERNEL.lanes() : Integer.MAX_VALUE;
+    double[] mass = new double[256];
+    double[] xPos = new double[256];
+    double[] yPos = new double[256];
+    int size;
+    int visits;  // Quads the walk that filled the list reached
+
+    // Bodies the list is applied to in a group walk
+    int[] members = new int[64];
+    int memberCount;
+
+    // Per-interaction accelerations, written by the first pass of accelerate
+    private double[] xAcc = new double[256];
+    private double[] yAcc = new double[256];
+
+    // Result of the last accelerate call
+    double ax;
+    double ay;
+
+    void clear() {
+        size = 0;
+        visits = 0;
+    }
+
+    void clearMembers() {
+        memberCount = 0;
+    }
+
+    // Interactions each member gets from a group walk's list: every entry but the member itself,
+    // which the walk adds at zero offset
+    int memberInteractions() {
+        return size - 1;
+    }
+
+    void addMember(int b) {
+        if (memberCount == members.length) {
+            members = Arrays.copyOf(members, memberCount * 2);
+        }
+        members[memberCount++] = b;
+    }
+
+    void add(double m, double x, double y) {
+        if (size == mass.length) {
+            grow();
+        }
+        mass[size] = m;
+        xPos[size] = x;
+        yPos[size] = y;
+        size++;
+    }
+
+    // Softened Newtonian acceleration on a body at (x, y) from every mass in the list. The
+    // direction comes from dx/r and dy/r, so a zero offset pulls with no force at all.
+    void accelerate(double x, double y, double epsSq) {
+        if (size >= VECTOR_MIN) {
+            VECTOR_KERNEL.accelerate(this, x, y, epsSq);
+        } else {
+            accelerateScalar(x, y, epsSq);
+        }
+    }
+
+    // The same on the scalar path, whether or not the vector one is available
+    void accelerateScalar(double x, double y, double epsSq) {
+        // Branch-free pass over independent elements, which the JIT can vectorize
+        for (int k = 0; k < size; k++) {
+            double dx = xPos[k] - x;
+            double dy = yPos[k] - y;
+            double rSq = dx * dx + dy * dy;
+            double f = Body.G * mass[k] / ((rSq + epsSq) * Math.sqrt(rSq + TINY));
+            xAcc[k] = f * dx;
+            yAcc[k] = f * dy;
+        }
+        double sx = 0;
+        double sy = 0;
+        for (int k = 0; k < size; k++) {
+            sx += xAcc[k];
+            sy += yAcc[k];
+        }
+        ax = sx;
+        ay = sy;
+    }
+
+    // Which kernel accelerate uses, for reports
+    static String kernel() {
+        return VECTOR ? "vector, " + VECTOR_KERNEL.lanes() + " lanes" : "scalar";
+    }
+
+    // What accelerate hands long lists to. Only VectorKernel implements it; it's looked up by
+    // name so that src/ compiles on its own, without the incubator module
+    interface Kernel {
+        int lanes();
+
+        // Sets list.ax and list.ay as accelerate does
+        void accelerate(InteractionList list, double x, double y, double epsSq);
+    }
+
+    private static Kernel vectorKernel() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+        try {
+            return (Kernel) Class.forName("VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;  // Built from src/ alone
+        }
+    }
+
+    private void grow() {
+        int capacity = mass.length * 2;
+        mass = Arrays.copyOf(mass, capacity);
+        xPos = Arrays.copyOf(xPos, capacity);
+        yPos = Arrays.copyOf(yPos, capacity);
+        xAcc = new double[capacity];
+        yAcc = new double[capacity];
+    }
+}
@@ -0,0 +1,381 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Parallel quadtree builder. Bodies get a Morton (Z-order) key, the keys are radix sorted in
+// parallel, and the tree is laid out from the sorted keys: every quad covers a contiguous run
+// of the sorted bodies, so subtrees below a cutoff are built and aggregated independently.
+public class MortonBuilder {
+    static final int LEVELS = 31;  // Key bits per axis, and the deepest level a key can split
+    static final long OUTSIDE = Long.MAX_VALUE;  // Sorts after every in-bounds key
+    private static final int BLOCK = 8192;  // Bodies per block in the parallel passes
+    private static final int CUTOFF = 4096;  // Largest sorted run built as one subtree task
+    private static final int RADIX = 256;
+    private final BodyStore bodies;
+    private final PoolInvoker invoker;
+
+    // Scratch arrays, reused between builds
+    private long[] keys = new long[0];
+    private long[] keysTmp = new long[0];
+    private int[] order = new int[0];
+    private int[] orderTmp = new int[0];
+    private int[][] histogram = new int[0][];
+
+    // Subtrees left for the parallel phase: their root node, sorted run and first free node
+    private int[] subNode = new int[16];
+    private int[] subFrom = new int[16];
+    private int[] subTo = new int[16];
+    private int[] subBase = new int[16];
+    private int subCount;
+
+    // What the parallel passes below read, set by build before running them. The passes are made
+    // once, so a build allocates nothing once the scratch arrays are big enough
+    private Quad tree;
+    private int n;
+    private double x0;
+    private double y1;
+    private double length;
+    private double scale;
+    private int shift;  // Key byte the current sort pass works on
+    private final ParallelRange keyPass;
+    private final ParallelRange countPass;
+    private final ParallelRange scatterPass;
+    private final ParallelRange sizePass;
+    private final ParallelRange fillPass;
+
+    public MortonBuilder(BodyStore bodies, ForkJoinPool pool) {
+        this.bodies = bodies;
+        invoker = new PoolInvoker(pool);
+        keyPass = new ParallelRange(invoker, this::keyBlock);
+        countPass = new ParallelRange(invoker, this::countBlock);
+        scatterPass = new ParallelRange(invoker, this::scatterBlock);
+        sizePass = new ParallelRange(invoker, this::sizeSubtree);
+        fillPass = new ParallelRange(invoker, this::fillSubtree);
+    }
+
+    public void build(Quad tree, double xMid, double yMid, double length) {
+        int n = bodies.size();
+        ensureScratch(n);
+        tree.reset(xMid, yMid, length);
+
+        this.tree = tree;
+        this.n = n;
+        x0 = xMid - length / 2;
+        y1 = yMid + length / 2;
+        this.length = length;
+        scale = (1L << LEVELS) / length;
+        forEachBlock(n, keyPass);
+        sort(n);
+
+        int inside = n;
+        while (inside > 0 && keys[inside - 1] == OUTSIDE) {
+            inside--;
+        }
+
+        // Lay out the top of the tree serially until every run is small enough for one task
+        subCount = 0;
+        tree.nodeCount = 1;
+        layoutTop(tree, 0, 0, inside);
+        int top = tree.nodeCount;
+
+        // Size every subtree in parallel, then give each one its own block of node slots
+        forEach(subCount, sizePass);
+        int free = top;
+        for (int s = 0; s < subCount; s++) {
+            int size = subBase[s];
+            subBase[s] = free;
+            free += size;
+        }
+        tree.ensureCapacity(free);
+        tree.nodeCount = free;
+        forEach(subCount, fillPass);
+
+        // Finish the upward pass over the serial top; children always follow their parent
+        for (int q = top - 1; q >= 0; q--) {
+            if (tree.child[q] != Quad.NONE) {
+                aggregate(tree, q);
+            }
+        }
+
+        // Bodies outside the root still pull on everything through the root aggregate
+        for (int k = inside; k < n; k++) {
+            addToRoot(tree, order[k]);
+        }
+        this.tree = null;
+    }
+
+    private void keyBlock(int block) {
+        int to = Math.min(n, (block + 1) * BLOCK);
+        for (int i = block * BLOCK; i < to; i++) {
+            keys[i] = key(bodies.xPos[i], bodies.yPos[i], x0, y1, length, scale);
+            order[i] = i;
+        }
+    }
+
+    private void countBlock(int block) {
+        int[] counts = histogram[block];
+        Arrays.fill(counts, 0);
+        int to = Math.min(n, (block + 1) * BLOCK);
+        for (int i = block * BLOCK; i < to; i++) {
+            counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+        }
+    }
+
+    private void scatterBlock(int block) {
+        int[] offsets = histogram[block];
+        int to = Math.min(n, (block + 1) * BLOCK);
+        for (int i = block * BLOCK; i < to; i++) {
+            int o = offsets[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+            keysTmp[o] = keys[i];
+            orderTmp[o] = order[i];
+        }
+    }
+
+    private void sizeSubtree(int s) {
+        subBase[s] = countNodes(subFrom[s], subTo[s], tree.depth[subNode[s]], tree.getLeafSize());
+    }
+
+    private void fillSubtree(int s) {
+        fill(tree, subNode[s], subFrom[s], subTo[s], subBase[s]);
+    }
+
+    // Interleaves the quantized position so each pair of bits picks NW, NE, SW or SE in turn
+    static long key(double x, double y, double x0, double y1, double length, double scale) {
+        double dx = x - x0;
+        double dy = y1 - y;  // Flipped so the north half sorts first
+        if (!(dx >= 0 && dx <= length && dy >= 0 && dy <= length)) {
+            return OUTSIDE;
+        }
+        long max = (1L << LEVELS) - 1;
+        long ix = Math.min((long) (dx * scale), max);
+        long iy = Math.min((long) (dy * scale), max);
+        return spread(ix) | (spread(iy) << 1);
+    }
+
+    // Moves the low 32 bits of v to the even bit positions
+    private static long spread(long v) {
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    // Sub quad (0 = NW, 1 = NE, 2 = SW, 3 = SE) a key falls in below a quad at the given depth
+    private static int digit(long key, int depth) {
+        return (int) (key >>> (2 * (LEVELS - 1 - depth))) & 3;
+    }
+
+    // Stable LSD radix sort of keys with order, one byte per pass, in parallel over blocks
+    private void sort(int n) {
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        for (shift = 0; shift < 64; shift += 8) {
+            forEachBlock(n, countPass);
+
+            // Skip passes where every key has the same byte
+            boolean trivial = false;
+            for (int d = 0; d < RADIX && !trivial; d++) {
+                int total = 0;
+                for (int b = 0; b < blocks; b++) {
+                    total += histogram[b][d];
+                }
+                trivial = total == n;
+            }
+            if (trivial) {
+                continue;
+            }
+
+            // Turn counts into each block's starting offset for each digit
+            int offset = 0;
+            for (int d = 0; d < RADIX; d++) {
+                for (int b = 0; b < blocks; b++) {
+                    int c = histogram[b][d];
+                    histogram[b][d] = offset;
+                    offset += c;
+                }
+            }
+
+            forEachBlock(n, scatterPass);
+            long[] k = keys;
+            keys = keysTmp;
+            keysTmp = k;
+            int[] o = order;
+            order = orderTmp;
+            orderTmp = o;
+        }
+    }
+
+    private void layoutTop(Quad tree, int q, int from, int to) {
+        if (to - from <= CUTOFF || tree.depth[q] >= LEVELS) {
+            addSubtree(q, from, to);
+            return;
+        }
+        int c = tree.nodeCount;
+        tree.ensureCapacity(c + 4);
+        tree.nodeCount += 4;
+        splitNode(tree, q, c);
+        int start = from;
+        for (int k = 0; k < 4; k++) {
+            int end = runEnd(start, to, tree.depth[q], k);
+            layoutTop(tree, c + k, start, end);
+            start = end;
+        }
+    }
+
+    // Number of nodes below a quad of the given depth holding the sorted run [from, to)
+    private int countNodes(int from, int to, int depth, int leafSize) {
+        if (to - from <= leafSize || depth >= LEVELS) {
+            return 0;
+        }
+        int nodes = 4;
+        int start = from;
+        for (int k = 0; k < 4; k++) {
+            int end = runEnd(start, to, depth, k);
+            nodes += countNodes(start, end, depth + 1, leafSize);
+            start = end;
+        }
+        return nodes;
+    }
+
+    // Builds the subtree of quad q over the sorted run [from, to) into slots from free on,
+    // aggregating mass on the way back up. Returns the next free slot
+    private int fill(Quad tree, int q, int from, int to, int free) {
+        if (to - from <= tree.getLeafSize() || tree.depth[q] >= LEVELS) {
+            makeLeaf(tree, q, from, to);
+            return free;
+        }
+        int c = free;
+        free += 4;
+        splitNode(tree, q, c);
+        int start = from;
+        for (int k = 0; k < 4; k++) {
+            int end = runEnd(start, to, tree.depth[q], k);
+            free = fill(tree, c + k, start, end, free);
+            start = end;
+        }
+        aggregate(tree, q);
+        return free;
+    }
+
+    private void splitNode(Quad tree, int q, int c) {
+        double len = tree.length[q] / 2;
+        double off = tree.length[q] / 4;
+        double x = tree.xMid[q];
+        double y = tree.yMid[q];
+        int d = tree.depth[q] + 1;
+        tree.initNode(c, x - off, y + off, len, d);  // NW
+        tree.initNode(c + 1, x + off, y + off, len, d);  // NE
+        tree.initNode(c + 2, x - off, y - off, len, d);  // SW
+        tree.initNode(c + 3, x + off, y - off, len, d);  // SE
+        tree.child[q] = c;
+    }
+
+    // End of the part of sorted run [from, to) that falls in sub quad k below the given depth
+    private int runEnd(int from, int to, int depth, int k) {
+        if (k == 3) {
+            return to;
+        }
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (digit(keys[mid], depth) <= k) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void makeLeaf(Quad tree, int q, int from, int to) {
+        double m = 0;
+        double x = 0;
+        double y = 0;
+        for (int k = from; k < to; k++) {
+            int b = order[k];
+            tree.next[b] = k + 1 < to ? order[k + 1] : Quad.NONE;
+            tree.leafOf[b] = q;
+            m += bodies.mass[b];
+            x += bodies.mass[b] * bodies.xPos[b];
+            y += bodies.mass[b] * bodies.yPos[b];
+        }
+        tree.first[q] = to > from ? order[from] : Quad.NONE;
+        tree.count[q] = to - from;
+        setCenterOfMass(tree, q, m, x, y);
+    }
+
+    private static void aggregate(Quad tree, int q) {
+        double m = 0;
+        double x = 0;
+        double y = 0;
+        int count = 0;
+        int c = tree.child[q];
+        for (int k = c; k < c + 4; k++) {
+            m += tree.mass[k];
+            x += tree.mass[k] * tree.xCom[k];
+            y += tree.mass[k] * tree.yCom[k];
+            count += tree.count[k];
+        }
+        tree.count[q] = count;
+        setCenterOfMass(tree, q, m, x, y);
+    }
+
+    private void addToRoot(Quad tree, int b) {
+        double m = tree.mass[0] + bodies.mass[b];
+        double x = tree.mass[0] * tree.xCom[0] + bodies.mass[b] * bodies.xPos[b];
+        double y = tree.mass[0] * tree.yCom[0] + bodies.mass[b] * bodies.yPos[b];
+        tree.count[0]++;
+        setCenterOfMass(tree, 0, m, x, y);
+    }
+
+    private static void setCenterOfMass(Quad tree, int q, double m, double x, double y) {
+        tree.mass[q] = m;
+        if (m != 0) {
+            tree.xCom[q] = x / m;
+            tree.yCom[q] = y / m;
+        } else {
+            tree.xCom[q] = tree.xMid[q];
+            tree.yCom[q] = tree.yMid[q];
+        }
+    }
+
+    private void addSubtree(int q, int from, int to) {
+        if (subCount == subNode.length) {
+            int capacity = subCount * 2;
+            subNode = Arrays.copyOf(subNode, capacity);
+            subFrom = Arrays.copyOf(subFrom, capacity);
+            subTo = Arrays.copyOf(subTo, capacity);
+            subBase = Arrays.copyOf(subBase, capacity);
+        }
+        subNode[subCount] = q;
+        subFrom[subCount] = from;
+        subTo[subCount] = to;
+        subCount++;
+    }
+
+    private void ensureScratch(int n) {
+        if (keys.length < n) {
+            int capacity = bodies.xPos.length;
+            keys = new long[capacity];
+            keysTmp = new long[capacity];
+            order = new int[capacity];
+            orderTmp = new int[capacity];
+        }
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        if (histogram.length < blocks) {
+            histogram = new int[blocks][RADIX];
+        }
+    }
+
+    private void forEachBlock(int n, ParallelRange pass) {
+        forEach((n + BLOCK - 1) / BLOCK, pass);
+    }
+
+    private void forEach(int tasks, ParallelRange pass) {
+        if (tasks > 0) {
+            invoker.invoke(pass.range(0, tasks));
+        }
+    }
+}
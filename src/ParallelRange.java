@@ -0,0 +1,55 @@
+import java.util.concurrent.CountedCompleter;
+import java.util.function.IntConsumer;
+
+// Runs op over every index in [from, to), splitting down to one index per task. A range made
+// with a PoolInvoker as its parent can be run again through it with range(): it keeps the
+// subtasks it split into and never blocks in a join, so once it has been split as finely as
+// the new range needs, running it allocates nothing
+class ParallelRange extends CountedCompleter<Void> {
+    private final IntConsumer op;
+    private int from;
+    private int to;
+    private ParallelRange left;
+    private ParallelRange right;
+
+    // A range to be set with range() before each run through parent
+    ParallelRange(CountedCompleter<?> parent, IntConsumer op) {
+        super(parent);
+        this.op = op;
+    }
+
+    ParallelRange(IntConsumer op, int from, int to) {
+        this.op = op;
+        this.from = from;
+        this.to = to;
+    }
+
+    // Readies this task to run over [from, to), once the last run has finished
+    ParallelRange range(int from, int to) {
+        reinitialize();
+        setPendingCount(0);
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    @Override
+    public void compute() {
+        // Forks the right halves and carries on down the left ones in this thread
+        ParallelRange t = this;
+        while (t.to - t.from > 1) {
+            int mid = (t.from + t.to) >>> 1;
+            if (t.left == null) {
+                t.left = new ParallelRange(t, op);
+                t.right = new ParallelRange(t, op);
+            }
+            t.setPendingCount(1);
+            t.right.range(mid, t.to).fork();
+            t = t.left.range(t.from, mid);
+        }
+        if (t.to > t.from) {
+            op.accept(t.from);
+        }
+        t.tryComplete();
+    }
+}
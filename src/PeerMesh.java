@@ -0,0 +1,165 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Socket channels between every pair of workers in a distributed run. Messages are a little-endian
+// int length followed by that many bytes. Each worker connects to the lower ranks, announcing its
+// own rank, and accepts the higher ones, so every pair ends up with exactly one channel.
+class PeerMesh implements Closeable {
+    static final String HOST = "127.0.0.1";
+    private final int rank;
+    private final SocketChannel[] peers;
+    private final Selector selector;
+
+    // Per peer progress through an exchange
+    private final ByteBuffer[] sendHeader;
+    private final ByteBuffer[] recvHeader;
+    private final boolean[] sized;
+    private ByteBuffer[] recv;
+
+    PeerMesh(int rank, int[] ports, ServerSocketChannel server) throws IOException {
+        this.rank = rank;
+        int size = ports.length;
+        peers = new SocketChannel[size];
+        for (int j = 0; j < rank; j++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, ports[j]));
+            send(channel, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, rank));
+            peers[j] = channel;
+        }
+        for (int accepted = rank + 1; accepted < size; accepted++) {
+            SocketChannel channel = server.accept();
+            peers[receive(channel).getInt(0)] = channel;
+        }
+
+        selector = Selector.open();
+        sendHeader = new ByteBuffer[size];
+        recvHeader = new ByteBuffer[size];
+        recv = new ByteBuffer[size];
+        sized = new boolean[size];
+        for (int j = 0; j < size; j++) {
+            if (j == rank) {
+                continue;
+            }
+            peers[j].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            peers[j].configureBlocking(false);
+            peers[j].register(selector, 0, j);
+            sendHeader[j] = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            recvHeader[j] = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            recv[j] = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    int size() {
+        return peers.length;
+    }
+
+    // Sends out[j] (from its position to its limit) to every peer j and returns what each peer
+    // sent in turn, readable from position 0. Entry rank is left null. All peers have to call
+    // this together; sends and receives interleave, so large messages can't deadlock. The
+    // returned buffers are reused by the next exchange
+    ByteBuffer[] exchange(ByteBuffer[] out) throws IOException {
+        ByteBuffer[] in = new ByteBuffer[peers.length];
+        int pending = 0;
+        for (int j = 0; j < peers.length; j++) {
+            if (j == rank) {
+                continue;
+            }
+            sendHeader[j].clear();
+            sendHeader[j].putInt(0, out[j].remaining());
+            recvHeader[j].clear();
+            sized[j] = false;
+            peers[j].keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            pending += 2;
+        }
+        while (pending > 0) {
+            selector.select();
+            for (SelectionKey key : selector.selectedKeys()) {
+                int j = (Integer) key.attachment();
+                SocketChannel channel = peers[j];
+                if (key.isValid() && key.isWritable()) {
+                    channel.write(new ByteBuffer[] {sendHeader[j], out[j]});
+                    if (!sendHeader[j].hasRemaining() && !out[j].hasRemaining()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        pending--;
+                    }
+                }
+                if (key.isValid() && key.isReadable() && in[j] == null) {
+                    if (recvHeader[j].hasRemaining() && channel.read(recvHeader[j]) < 0) {
+                        throw new EOFException("Worker " + j + " closed its channel");
+                    }
+                    if (recvHeader[j].hasRemaining()) {
+                        continue;
+                    }
+                    ByteBuffer body = payload(j, recvHeader[j].getInt(0));
+                    if (body.hasRemaining() && channel.read(body) < 0) {
+                        throw new EOFException("Worker " + j + " closed its channel");
+                    }
+                    if (!body.hasRemaining()) {
+                        body.flip();
+                        in[j] = body;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        pending--;
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        return in;
+    }
+
+    // Receive buffer for peer j, grown to fit and limited to length when its header has arrived
+    private ByteBuffer payload(int j, int length) {
+        if (!sized[j]) {
+            if (recv[j].capacity() < length) {
+                recv[j] = ByteBuffer.allocate(Math.max(length, recv[j].capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            recv[j].clear().limit(length);
+            sized[j] = true;
+        }
+        return recv[j];
+    }
+
+    // Sends a whole message on a blocking channel
+    static void send(SocketChannel channel, ByteBuffer message) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, message.remaining());
+        while (header.hasRemaining() || message.hasRemaining()) {
+            channel.write(new ByteBuffer[] {header, message});
+        }
+    }
+
+    // Reads a whole message from a blocking channel
+    static ByteBuffer receive(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header);
+        ByteBuffer message = ByteBuffer.allocate(header.getInt(0)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, message);
+        message.flip();
+        return message;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Channel closed mid-message");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        for (SocketChannel channel : peers) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
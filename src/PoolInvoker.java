@@ -0,0 +1,71 @@
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs a task tree on a pool and waits for it, as pool.invoke does, without allocating. The
+// trees are CountedCompleters made with this invoker as the root's completer: none of their
+// tasks ever blocks in a join, so the pool allocates no wait nodes, and the last one to finish
+// completes this invoker, which wakes the caller. Together with trees that keep their subtasks
+// between runs, a call allocates nothing. For one thread outside the pool at a time.
+class PoolInvoker extends CountedCompleter<Void> {
+    private final ForkJoinPool pool;
+    private Throwable failure;
+    private volatile Thread waiter;
+    private volatile boolean finished;
+
+    PoolInvoker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Runs task, made with this invoker as its completer and readied to run again, and returns
+    // once its whole tree is done, rethrowing anything it threw
+    void invoke(CountedCompleter<?> task) {
+        Thread current = Thread.currentThread();
+        if (current instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) current).getPool() == pool) {
+            throw new IllegalStateException("PoolInvoker can't wait on its own pool");
+        }
+        reinitialize();
+        setPendingCount(0);
+        failure = null;
+        finished = false;
+        waiter = current;
+        pool.execute(task);
+        while (!finished) {
+            LockSupport.park(this);
+        }
+        // The caller is woken from onCompletion, before this task is marked done; starting the
+        // next run before then would have that mark land on it
+        while (!isDone()) {
+            Thread.yield();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    @Override
+    public void compute() {
+        // Never run; only completed by the task trees below it
+    }
+
+    @Override
+    public void onCompletion(CountedCompleter<?> caller) {
+        finished = true;
+        LockSupport.unpark(waiter);
+    }
+
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+        failure = ex;
+        finished = true;
+        LockSupport.unpark(waiter);
+        return false;
+    }
+}
@@ -1,142 +1,783 @@
-import java.awt.Graphics;
+import java.util.Arrays;
 
+// Flattened quadtree. Node data lives in parallel primitive arrays that are reused every frame
+// and only grow when a frame needs more nodes than any frame before it.
 public class Quad {
-    private final double THETA = 0.2;  // BH parameter
-    private final int depth;  // Depth in quadtree
-    private Body body;  // Contained body or aggregate body represented by this quad
-    private Quad NW, NE, SW, SE;
-    private final double xMid;
-    private final double yMid;
-    private final double length;
-
-    public Quad(double xMid, double yMid, double length, int depth) {
-        this.body = null;
-        this.xMid = xMid;
-        this.yMid = yMid;
-        this.length = length;
-        this.depth = depth;
-    }
-
-    public void insert(Body b) {
-        // If quad does not contain a body, put the body in it
-        if (body == null) {
-            body = b;
-            return;
+    static final int NONE = -1;
+    static final double THETA = 0.2;  // Default BH parameter
+    static final int LEAF_SIZE = 8;  // Default number of bodies an external quad holds before it splits
+    static final int GROUP_SIZE = 64;  // Default most bodies that share one walk in the group walk
+    private static final int MAX_DEPTH = 50;  // arbitrary threshold of depth 50
+    private final BodyStore bodies;
+    private double theta = THETA;
+    private int leafSize = LEAF_SIZE;
+
+    // Node arrays, indexed by node. Node 0 is the root
+    double[] xMid;
+    double[] yMid;
+    double[] length;
+    double[] mass;  // Aggregate mass and center of mass represented by each quad
+    double[] xCom;
+    double[] yCom;
+    int[] depth;  // Depth in quadtree
+    int[] child;  // First of the four children NW, NE, SW, SE, or NONE if external
+    int[] count;  // Number of bodies inside each quad
+    int[] first;  // Head of the body list of an external quad, summed directly by the walk
+    int nodeCount;
+
+    // Body list links and the leaf holding each body (NONE if outside the tree), indexed by body
+    int[] next;
+    int[] leafOf;
+    private int builtFor;  // Body count at the last reset; the lists above only cover that many
+
+    // Shape of the tree after the last build or refit, for deciding when to rebuild
+    int maxDepth;
+    int underfull;  // Internal quads holding no more bodies than a leaf could
+
+    // Bodies that left their leaf during a refit, and the leaf they left
+    private int[] moved = new int[16];
+    private int[] movedFrom = new int[16];
+
+    // Quads the group walk visits the tree for, found by findGroups
+    int[] groups = new int[16];
+    int groupCount;
+
+    // Mixed precision copy of what the walk reads, refreshed by measure and refit. Positions are
+    // floats relative to the root's middle and the walk sums the forces in doubles. Each quad is
+    // one record of four floats and four ints instead of a read from each of seven node arrays,
+    // and the bodies are laid out leaf by leaf, so a leaf's bodies are read in one run
+    private boolean mixed;
+    private double packX;  // Middle of the root when packed, which positions are relative to
+    private double packY;
+    private float[] packedNode = new float[0];  // Per quad: x and y of the center of mass, mass, side
+    private int[] packedLink = new int[0];  // Per quad: first child, count, and its slots from and to
+    private float[] packedBody = new float[0];  // Per slot: x, y and mass of a body
+    private int[] packedId = new int[0];  // Body in each slot
+    private int[] slotOf = new int[0];  // Slot of each body, NONE if outside the tree
+
+    public Quad(BodyStore bodies) {
+        this(bodies, 64);
+    }
+
+    public Quad(BodyStore bodies, int capacity) {
+        this.bodies = bodies;
+        xMid = new double[capacity];
+        yMid = new double[capacity];
+        length = new double[capacity];
+        mass = new double[capacity];
+        xCom = new double[capacity];
+        yCom = new double[capacity];
+        depth = new int[capacity];
+        child = new int[capacity];
+        count = new int[capacity];
+        first = new int[capacity];
+        next = new int[Math.max(bodies.size(), 16)];
+        leafOf = new int[next.length];
+    }
+
+    // Empties the tree, keeping its arrays, and sets up a new root
+    public void reset(double xMid, double yMid, double length) {
+        nodeCount = 0;
+        builtFor = bodies.size();
+        newNode(xMid, yMid, length, 0);
+        if (next.length < bodies.size()) {
+            next = new int[bodies.xPos.length];
+            leafOf = new int[next.length];
+        }
+        Arrays.fill(leafOf, 0, bodies.size(), NONE);
+    }
+
+    public void insert(int b) {
+        double x = bodies.xPos[b];
+        double y = bodies.yPos[b];
+        int n = 0;
+        while (true) {
+            if (child[n] == NONE) {
+                // External quads take bodies until they are full; past the depth limit they never fill
+                if (count[n] < leafSize || depth[n] >= MAX_DEPTH) {
+                    next[b] = first[n];
+                    first[n] = b;
+                    leafOf[b] = n;
+                    combine(n, b);
+                    return;
+                }
+                split(n);
+            }
+
+            // Internal node: update the aggregate and carry on into the sub quad
+            combine(n, b);
+            n = subQuadOf(n, x, y);
+            if (n == NONE) {
+                return;
+            }
+        }
+    }
+
+    // Turns the totals accumulated by insert into centers of mass
+    public void computeCentersOfMass() {
+        for (int n = 0; n < nodeCount; n++) {
+            if (mass[n] != 0) {
+                xCom[n] /= mass[n];
+                yCom[n] /= mass[n];
+            } else {
+                xCom[n] = xMid[n];
+                yCom[n] = yMid[n];
+            }
+        }
+    }
+
+    // Updates the tree in place after the bodies have moved: bodies that left their leaf are
+    // moved to the leaf that now holds them, splitting full leaves, and every aggregate is
+    // recomputed bottom-up. Emptied quads are kept. Returns how many bodies changed leaf, or
+    // NONE if a body left the root or the body count changed since the tree was built, in which
+    // case it needs a rebuild.
+    // Bodies are visited in index order rather than down the leaf lists, to read them in order
+    public int refit() {
+        int n = bodies.size();
+        if (n != builtFor) {
+            return NONE;
+        }
+        int movedCount = 0;
+        for (int b = 0; b < n; b++) {
+            int q = leafOf[b];
+            if (q == NONE) {
+                return NONE;
+            }
+            if (!contains(q, bodies.xPos[b], bodies.yPos[b])) {
+                if (movedCount == moved.length) {
+                    moved = Arrays.copyOf(moved, movedCount * 2);
+                    movedFrom = Arrays.copyOf(movedFrom, movedCount * 2);
+                }
+                moved[movedCount++] = b;
+            }
+        }
+
+        // Unlink the movers from their old leaves, then place them again
+        for (int k = 0; k < movedCount; k++) {
+            movedFrom[k] = leafOf[moved[k]];
+            leafOf[moved[k]] = NONE;
+        }
+        for (int k = 0; k < movedCount; k++) {
+            int q = movedFrom[k];
+            int prev = NONE;
+            for (int b = first[q]; b != NONE; b = next[b]) {
+                if (leafOf[b] != NONE) {
+                    prev = b;
+                } else if (prev == NONE) {
+                    first[q] = next[b];
+                } else {
+                    next[prev] = next[b];
+                }
+            }
+        }
+        for (int k = 0; k < movedCount; k++) {
+            if (!place(moved[k])) {
+                return NONE;
+            }
+        }
+        aggregateAll();
+        if (mixed) {
+            pack();
+        }
+        return movedCount;
+    }
+
+    // Links body b into the leaf holding it, without touching aggregates
+    private boolean place(int b) {
+        double x = bodies.xPos[b];
+        double y = bodies.yPos[b];
+        if (!contains(0, x, y)) {
+            return false;
+        }
+        int n = 0;
+        while (child[n] != NONE || (countList(n) >= leafSize && depth[n] < MAX_DEPTH)) {
+            if (child[n] == NONE) {
+                splitList(n);
+            }
+            n = quadrantOf(n, x, y);
+        }
+        next[b] = first[n];
+        first[n] = b;
+        leafOf[b] = n;
+        return true;
+    }
+
+    private int countList(int n) {
+        int c = 0;
+        for (int b = first[n]; b != NONE; b = next[b]) {
+            c++;
+        }
+        return c;
+    }
+
+    // Like split, but only moves the body list; refit recomputes the aggregates afterwards
+    private void splitList(int n) {
+        double len = length[n] / 2;
+        double off = length[n] / 4;
+        int d = depth[n] + 1;
+        int c = newNode(xMid[n] - off, yMid[n] + off, len, d);  // NW
+        newNode(xMid[n] + off, yMid[n] + off, len, d);  // NE
+        newNode(xMid[n] - off, yMid[n] - off, len, d);  // SW
+        newNode(xMid[n] + off, yMid[n] - off, len, d);  // SE
+        child[n] = c;
+
+        int b = first[n];
+        first[n] = NONE;
+        while (b != NONE) {
+            int o = next[b];
+            int sub = quadrantOf(n, bodies.xPos[b], bodies.yPos[b]);
+            next[b] = first[sub];
+            first[sub] = b;
+            leafOf[b] = sub;
+            b = o;
         }
+    }
 
-        // Internal node
-        if (!isExternal()) {
-            body = body.combine(b);
-            insertToSubQuad(b);
+    // Recomputes mass, center of mass and count of every quad from the bodies up, and the shape
+    // measures. Children always sit after their parent, so one backwards pass does the quads
+    private void aggregateAll() {
+        Arrays.fill(mass, 0, nodeCount, 0);
+        Arrays.fill(xCom, 0, nodeCount, 0);
+        Arrays.fill(yCom, 0, nodeCount, 0);
+        Arrays.fill(count, 0, nodeCount, 0);
+        for (int b = 0; b < bodies.size(); b++) {
+            combine(leafOf[b], b);
         }
 
-        // else external node
-        else {
-            // arbitrary threshold of depth 50
-            if (depth < 50) {
-                // recurse
-                NW = NW();
-                NE = NE();
-                SW = SE();
-                SW = SW();
+        maxDepth = 0;
+        underfull = 0;
+        for (int n = nodeCount - 1; n >= 0; n--) {
+            if (child[n] == NONE) {
+                maxDepth = Math.max(maxDepth, depth[n]);
+            } else {
+                double m = 0;
+                double x = 0;
+                double y = 0;
+                int c = 0;
+                for (int k = child[n]; k < child[n] + 4; k++) {
+                    m += mass[k];
+                    x += mass[k] * xCom[k];
+                    y += mass[k] * yCom[k];
+                    c += count[k];
+                }
+                mass[n] = m;
+                xCom[n] = x;
+                yCom[n] = y;
+                count[n] = c;
+                if (c <= leafSize) {
+                    underfull++;
+                }
+            }
+            // Children are finished before their parent reads them
+            if (mass[n] != 0) {
+                xCom[n] /= mass[n];
+                yCom[n] /= mass[n];
+            } else {
+                xCom[n] = xMid[n];
+                yCom[n] = yMid[n];
+            }
+        }
+    }
 
-                // Both children are inserted recursively
-                insertToSubQuad(body);
-                insertToSubQuad(b);
+    // Records the shape of a freshly built tree. Builders call this once they are done
+    void measure() {
+        maxDepth = 0;
+        underfull = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            if (child[n] == NONE) {
+                maxDepth = Math.max(maxDepth, depth[n]);
+            } else if (count[n] <= leafSize) {
+                underfull++;
             }
+        }
+        if (mixed) {
+            pack();
+        }
+    }
 
-            // Update aggregate body mass and center of mass
-            body = body.combine(b);
+    // Whether the walk reads the mixed precision copy. Not to be changed during a walk
+    public void setMixedPrecision(boolean mixed) {
+        this.mixed = mixed;
+        if (mixed && nodeCount > 0) {
+            pack();
         }
     }
 
-    public void insertToSubQuad(Body b) {
-        if (NW.contains(b))
-            NW.insert(b);
-        else if (NE.contains(b))
-            NE.insert(b);
-        else if (SW.contains(b))
-            SW.insert(b);
-        else if (SE.contains(b))
-            SE.insert(b);
+    public boolean isMixedPrecision() {
+        return mixed;
     }
 
-    public void updateVelocityOf(Body b) {
-        if (b == null || b.equals(body) || body == null) {
+    // Fills the mixed precision copy from the tree and bodies. A quad holding one body gets
+    // that body's own floats as its center of mass, so wherever a body turns up in a list it is
+    // at exactly the position walkX and walkY give for it, and pulls on itself with no force
+    private void pack() {
+        int n = bodies.size();
+        if (packedNode.length < 4 * nodeCount) {
+            packedNode = new float[4 * xMid.length];
+            packedLink = new int[4 * xMid.length];
+        }
+        if (packedId.length < n) {
+            packedBody = new float[3 * bodies.xPos.length];
+            packedId = new int[bodies.xPos.length];
+            slotOf = new int[bodies.xPos.length];
+        }
+        Arrays.fill(slotOf, 0, n, NONE);
+        packX = xMid[0];
+        packY = yMid[0];
+
+        int slot = 0;
+        for (int q = 0; q < nodeCount; q++) {
+            packedLink[4 * q + 2] = slot;
+            if (child[q] == NONE) {
+                for (int b = first[q]; b != NONE; b = next[b]) {
+                    packedBody[3 * slot] = (float) (bodies.xPos[b] - packX);
+                    packedBody[3 * slot + 1] = (float) (bodies.yPos[b] - packY);
+                    packedBody[3 * slot + 2] = (float) bodies.mass[b];
+                    packedId[slot] = b;
+                    slotOf[b] = slot++;
+                }
+            }
+            packedLink[4 * q + 3] = slot;
+        }
+
+        // Backwards, so a quad with one body can find its slot in its children
+        for (int q = nodeCount - 1; q >= 0; q--) {
+            int c = child[q];
+            int one = NONE;  // Slot of the only body, if the quad holds one
+            if (count[q] == 1) {
+                if (c == NONE) {
+                    one = packedLink[4 * q + 3] > packedLink[4 * q + 2] ? packedLink[4 * q + 2] : NONE;
+                } else {
+                    for (int k = c; k < c + 4; k++) {
+                        if (count[k] == 1) {
+                            one = packedLink[4 * k + 2];
+                        }
+                    }
+                }
+                // NONE when the body is outside the tree, as only the root's aggregate holds it
+                packedLink[4 * q + 2] = one;
+                packedLink[4 * q + 3] = one == NONE ? NONE : one + 1;
+            }
+            if (one != NONE) {
+                packedNode[4 * q] = packedBody[3 * one];
+                packedNode[4 * q + 1] = packedBody[3 * one + 1];
+            } else {
+                packedNode[4 * q] = (float) (xCom[q] - packX);
+                packedNode[4 * q + 1] = (float) (yCom[q] - packY);
+            }
+            packedNode[4 * q + 2] = (float) mass[q];
+            packedNode[4 * q + 3] = (float) length[q];
+            packedLink[4 * q] = c;
+            packedLink[4 * q + 1] = count[q];
+        }
+    }
+
+    // Position of body b in the frame the walk fills lists in: the body's own position, or with
+    // mixed precision its packed position relative to the root's middle
+    double walkX(int b) {
+        if (!mixed) {
+            return bodies.xPos[b];
+        }
+        int s = slotOf[b];
+        return s != NONE ? packedBody[3 * s] : bodies.xPos[b] - packX;
+    }
+
+    double walkY(int b) {
+        if (!mixed) {
+            return bodies.yPos[b];
+        }
+        int s = slotOf[b];
+        return s != NONE ? packedBody[3 * s + 1] : bodies.yPos[b] - packY;
+    }
+
+    // Walks the tree for body b, gathering what pulls on it into list, then applies the list.
+    // Returns the number of interactions
+    public int updateVelocityOf(int b, InteractionList list) {
+        interactionsOf(b, list);
+        bodies.updateVelocity(b, walkX(b), walkY(b), list);
+        return list.size;
+    }
+
+    // Fills list with the quads and bodies that pull on body b, at positions in the frame of
+    // walkX and walkY
+    public void interactionsOf(int b, InteractionList list) {
+        list.clear();
+        if (mixed) {
+            collectPacked(0, b, walkX(b), walkY(b), list);
+        } else {
+            collect(0, b, list);
+        }
+    }
+
+    private void collect(int n, int b, InteractionList list) {
+        list.visits++;
+        if (count[n] == 0 || (count[n] == 1 && first[n] == b)) {
             return;
         }
+        if (count[n] == 1) {
+            list.add(mass[n], xCom[n], yCom[n]);
+            return;
+        }
+
+        double dx = xCom[n] - bodies.xPos[b];
+        double dy = yCom[n] - bodies.yPos[b];
 
-        if (isExternal()) {
-            b.updateVelocity(this.body);
+        double d = Math.sqrt(dx * dx + dy * dy);
+
+        if (length[n] / d < theta) {
+            list.add(mass[n], xCom[n], yCom[n]);
+            return;
+        }
+        if (child[n] == NONE) {
+            // Bucket of bodies too close to stand in for: sum them directly
+            for (int o = first[n]; o != NONE; o = next[o]) {
+                if (o != b) {
+                    list.add(bodies.mass[o], bodies.xPos[o], bodies.yPos[o]);
+                }
+            }
         } else { // Quad is internal
-            double dx = body.xPos - b.xPos;
-            double dy = body.yPos - b.yPos;
+            int c = child[n];
+            collect(c, b, list);
+            collect(c + 1, b, list);
+            collect(c + 2, b, list);
+            collect(c + 3, b, list);
+        }
+    }
 
-            double d = Math.sqrt(dx * dx + dy * dy);
+    // Same walk as collect over the mixed precision copy, for the body at (x, y) relative to the
+    // root's middle
+    private void collectPacked(int n, int b, double x, double y, InteractionList list) {
+        list.visits++;
+        int p = 4 * n;
+        int c = packedLink[p + 1];
+        if (c == 0 || (c == 1 && packedLink[p + 2] != NONE && packedId[packedLink[p + 2]] == b)) {
+            return;
+        }
+        double cx = packedNode[p];
+        double cy = packedNode[p + 1];
+        if (c == 1) {
+            list.add(packedNode[p + 2], cx, cy);
+            return;
+        }
 
-            if (length / d < THETA) {
-                b.updateVelocity(this.body);
-            } else {
-                NW.updateVelocityOf(b);
-                NE.updateVelocityOf(b);
-                SW.updateVelocityOf(b);
-                SE.updateVelocityOf(b);
+        double dx = cx - x;
+        double dy = cy - y;
+
+        double d = Math.sqrt(dx * dx + dy * dy);
+
+        if (packedNode[p + 3] / d < theta) {
+            list.add(packedNode[p + 2], cx, cy);
+            return;
+        }
+        int k = packedLink[p];
+        if (k == NONE) {
+            for (int s = packedLink[p + 2]; s < packedLink[p + 3]; s++) {
+                if (packedId[s] != b) {
+                    list.add(packedBody[3 * s + 2], packedBody[3 * s], packedBody[3 * s + 1]);
+                }
+            }
+        } else {
+            collectPacked(k, b, x, y, list);
+            collectPacked(k + 1, b, x, y, list);
+            collectPacked(k + 2, b, x, y, list);
+            collectPacked(k + 3, b, x, y, list);
+        }
+    }
+
+    // Picks the largest quads holding at most maxCount bodies as groups for the group walk.
+    // Returns how many bodies the groups cover, which falls short of the body count only when
+    // some bodies are outside the root
+    public int findGroups(int maxCount) {
+        groupCount = 0;
+        return findGroups(0, maxCount);
+    }
+
+    private int findGroups(int n, int maxCount) {
+        if (count[n] == 0) {
+            return 0;
+        }
+        if (count[n] <= maxCount || child[n] == NONE) {
+            if (groupCount == groups.length) {
+                groups = Arrays.copyOf(groups, groupCount * 2);
+            }
+            groups[groupCount++] = n;
+            return child[n] == NONE ? count[n] : childCount(n);
+        }
+        int c = child[n];
+        return findGroups(c, maxCount) + findGroups(c + 1, maxCount)
+                + findGroups(c + 2, maxCount) + findGroups(c + 3, maxCount);
+    }
+
+    // Bodies in the children of internal quad n. Less than the count of the root when bodies
+    // outside it were added to its aggregate only
+    private int childCount(int n) {
+        int c = child[n];
+        return count[c] + count[c + 1] + count[c + 2] + count[c + 3];
+    }
+
+    // Fills list with the bodies of group quad g as its members, and with the quads and bodies
+    // that pull on them. The opening test measures to the members' bounding box, so one list
+    // serves the whole group. The members are in the list themselves, at zero offset and so with
+    // no pull; InteractionList.memberInteractions leaves them out of the count
+    public void interactionsOfGroup(int g, InteractionList list) {
+        list.clear();
+        list.clearMembers();
+        addMembers(g, list);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < list.memberCount; k++) {
+            int b = list.members[k];
+            minX = Math.min(minX, walkX(b));
+            maxX = Math.max(maxX, walkX(b));
+            minY = Math.min(minY, walkY(b));
+            maxY = Math.max(maxY, walkY(b));
+        }
+        if (mixed) {
+            collectGroupPacked(0, minX, minY, maxX, maxY, list);
+        } else {
+            collectGroup(0, minX, minY, maxX, maxY, list);
+        }
+    }
+
+    // Fills list with the quads and bodies that pull on anything inside the box, opened as for a
+    // group. A distributed run sends these to the worker whose bodies fill the box, so they stand
+    // in for this tree there
+    public void interactionsOfBox(double minX, double minY, double maxX, double maxY, InteractionList list) {
+        list.clear();
+        collectGroup(0, minX, minY, maxX, maxY, list);
+    }
+
+    // Whether any body under quad n has mark[b] == stamp
+    boolean hasMarked(int n, int[] mark, int stamp) {
+        if (child[n] == NONE) {
+            for (int b = first[n]; b != NONE; b = next[b]) {
+                if (mark[b] == stamp) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int c = child[n];
+        for (int k = c; k < c + 4; k++) {
+            if (count[k] > 0 && hasMarked(k, mark, stamp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addMembers(int n, InteractionList list) {
+        if (child[n] == NONE) {
+            for (int b = first[n]; b != NONE; b = next[b]) {
+                list.addMember(b);
+            }
+            return;
+        }
+        int c = child[n];
+        for (int k = c; k < c + 4; k++) {
+            if (count[k] > 0) {
+                addMembers(k, list);
+            }
+        }
+    }
+
+    private void collectGroup(int n, double minX, double minY, double maxX, double maxY, InteractionList list) {
+        list.visits++;
+        if (count[n] == 0) {
+            return;
+        }
+        if (count[n] == 1) {
+            list.add(mass[n], xCom[n], yCom[n]);
+            return;
+        }
+
+        // Distance from the center of mass to the nearest point of the box, 0 inside it
+        double dx = Math.max(0, Math.max(minX - xCom[n], xCom[n] - maxX));
+        double dy = Math.max(0, Math.max(minY - yCom[n], yCom[n] - maxY));
+
+        double d = Math.sqrt(dx * dx + dy * dy);
+
+        if (length[n] / d < theta) {
+            list.add(mass[n], xCom[n], yCom[n]);
+            return;
+        }
+        if (child[n] == NONE) {
+            for (int o = first[n]; o != NONE; o = next[o]) {
+                list.add(bodies.mass[o], bodies.xPos[o], bodies.yPos[o]);
             }
+        } else {
+            int c = child[n];
+            collectGroup(c, minX, minY, maxX, maxY, list);
+            collectGroup(c + 1, minX, minY, maxX, maxY, list);
+            collectGroup(c + 2, minX, minY, maxX, maxY, list);
+            collectGroup(c + 3, minX, minY, maxX, maxY, list);
+        }
+    }
+
+    // Same walk as collectGroup over the mixed precision copy
+    private void collectGroupPacked(int n, double minX, double minY, double maxX, double maxY, InteractionList list) {
+        list.visits++;
+        int p = 4 * n;
+        int c = packedLink[p + 1];
+        if (c == 0) {
+            return;
+        }
+        double cx = packedNode[p];
+        double cy = packedNode[p + 1];
+        if (c == 1) {
+            list.add(packedNode[p + 2], cx, cy);
+            return;
         }
 
+        double dx = Math.max(0, Math.max(minX - cx, cx - maxX));
+        double dy = Math.max(0, Math.max(minY - cy, cy - maxY));
+
+        double d = Math.sqrt(dx * dx + dy * dy);
+
+        if (packedNode[p + 3] / d < theta) {
+            list.add(packedNode[p + 2], cx, cy);
+            return;
+        }
+        int k = packedLink[p];
+        if (k == NONE) {
+            for (int s = packedLink[p + 2]; s < packedLink[p + 3]; s++) {
+                list.add(packedBody[3 * s + 2], packedBody[3 * s], packedBody[3 * s + 1]);
+            }
+        } else {
+            collectGroupPacked(k, minX, minY, maxX, maxY, list);
+            collectGroupPacked(k + 1, minX, minY, maxX, maxY, list);
+            collectGroupPacked(k + 2, minX, minY, maxX, maxY, list);
+            collectGroupPacked(k + 3, minX, minY, maxX, maxY, list);
+        }
+    }
+
+    public double getTheta() {
+        return theta;
     }
 
-    public boolean isExternal() {
-        return (NW == null && NE == null && SW == null && SE == null);
+    public void setTheta(double theta) {
+        this.theta = theta;
     }
 
-    // Checks whether body in bounds of quad
-    public boolean contains(Body b) {
-        double x = b.xPos;
-        double y = b.yPos;
-        return (x >= (xMid - length / 2) && x <= (xMid + length / 2) && y >= (yMid - length / 2)
-                && y <= (yMid + length / 2));
+    public int getLeafSize() {
+        return leafSize;
     }
 
-    public Quad NW() {
-        double x = xMid - length / 4;
-        double y = yMid + length / 4;
-        double len = length / 2;
-        return new Quad(x, y, len, depth + 1);
+    // Bodies an external quad holds before it splits. Takes effect on the next build
+    public void setLeafSize(int leafSize) {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("Leaf size must be at least 1, got " + leafSize);
+        }
+        this.leafSize = leafSize;
     }
 
-    public Quad NE() {
-        double x = xMid + length / 4;
-        double y = yMid + length / 4;
-        double len = length / 2;
-        return new Quad(x, y, len, depth + 1);
+    public boolean isExternal(int n) {
+        return child[n] == NONE;
     }
 
-    public Quad SW() {
-        double x = xMid - length / 4;
-        double y = yMid - length / 4;
-        double len = length / 2;
-        return new Quad(x, y, len, depth + 1);
+    // Checks whether point in bounds of quad
+    public boolean contains(int n, double x, double y) {
+        double half = length[n] / 2;
+        return (x >= (xMid[n] - half) && x <= (xMid[n] + half) && y >= (yMid[n] - half)
+                && y <= (yMid[n] + half));
     }
 
-    public Quad SE() {
-        double x = xMid + length / 4;
-        double y = yMid - length / 4;
-        double len = length / 2;
-        return new Quad(x, y, len, depth + 1);
+    // Fold body b into the running mass and mass-weighted position totals of quad n
+    private void combine(int n, int b) {
+        double m = bodies.mass[b];
+        mass[n] += m;
+        xCom[n] += m * bodies.xPos[b];
+        yCom[n] += m * bodies.yPos[b];
+        count[n]++;
     }
 
-    public void drawAll(Graphics g) {
-        double x = xMid - length / 2;
-        double y = yMid - length / 2;
-        g.drawRect((int) x, (int) y, (int) length, (int) length);
+    // Gives an external quad its four children and moves its bodies down into them
+    private void split(int n) {
+        double len = length[n] / 2;
+        double off = length[n] / 4;
+        int d = depth[n] + 1;
+        int c = newNode(xMid[n] - off, yMid[n] + off, len, d);  // NW
+        newNode(xMid[n] + off, yMid[n] + off, len, d);  // NE
+        newNode(xMid[n] - off, yMid[n] - off, len, d);  // SW
+        newNode(xMid[n] + off, yMid[n] - off, len, d);  // SE
+        child[n] = c;
 
-        // If quad is internal, recursively draw all subquads
-        if (!isExternal()) {
-            NW.drawAll(g);
-            NE.drawAll(g);
-            SW.drawAll(g);
-            SE.drawAll(g);
+        int b = first[n];
+        first[n] = NONE;
+        while (b != NONE) {
+            int o = next[b];
+            int sub = subQuadOf(n, bodies.xPos[b], bodies.yPos[b]);
+            if (sub != NONE) {
+                next[b] = first[sub];
+                first[sub] = b;
+                leafOf[b] = sub;
+                combine(sub, b);
+            } else {
+                leafOf[b] = NONE;
+            }
+            b = o;
+        }
+    }
+
+    // Child of internal quad n whose bounds hold (x, y), checked in NW, NE, SW, SE order
+    private int subQuadOf(int n, double x, double y) {
+        if (!contains(n, x, y)) {
+            return NONE;
+        }
+        return quadrantOf(n, x, y);
+    }
+
+    // Child of internal quad n on the side of its middle that (x, y) is on, wherever (x, y) is.
+    // Rounding in the child bounds can leave a point inside a quad but outside all its children
+    private int quadrantOf(int n, double x, double y) {
+        boolean north = y >= yMid[n];
+        boolean west = x <= xMid[n];
+        int c = child[n];
+        if (north) {
+            return west ? c : c + 1;
+        }
+        return west ? c + 2 : c + 3;
+    }
+
+    private int newNode(double x, double y, double len, int d) {
+        if (nodeCount == xMid.length) {
+            ensureCapacity(nodeCount + 1);
+        }
+        int n = nodeCount++;
+        initNode(n, x, y, len, d);
+        return n;
+    }
+
+    // Sets up an empty external quad in slot n, for builders that lay out nodes themselves
+    void initNode(int n, double x, double y, double len, int d) {
+        xMid[n] = x;
+        yMid[n] = y;
+        length[n] = len;
+        mass[n] = 0;
+        xCom[n] = 0;
+        yCom[n] = 0;
+        depth[n] = d;
+        child[n] = NONE;
+        count[n] = 0;
+        first[n] = NONE;
+    }
+
+    void ensureCapacity(int nodes) {
+        if (nodes <= xMid.length) {
+            return;
         }
+        int capacity = Math.max(nodes, xMid.length * 2);
+        xMid = Arrays.copyOf(xMid, capacity);
+        yMid = Arrays.copyOf(yMid, capacity);
+        length = Arrays.copyOf(length, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        xCom = Arrays.copyOf(xCom, capacity);
+        yCom = Arrays.copyOf(yCom, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        child = Arrays.copyOf(child, capacity);
+        count = Arrays.copyOf(count, capacity);
+        first = Arrays.copyOf(first, capacity);
     }
 }
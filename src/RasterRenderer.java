@@ -0,0 +1,314 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Draws bodies straight into the pixels of an image, in parallel over horizontal bands of the
+// screen. Bodies are first sorted into the bands their splat touches, so each band's task only
+// ever writes its own rows and no locking is needed. Every body adds to a per-pixel density
+// (and, for the velocity colouring, a density-weighted speed), which a colour map then turns
+// into the pixel colour. Quad outlines for the overlay are drawn into the same bands. The
+// result only depends on the snapshot, not on the thread count.
+//
+// Coordinates match the old Graphics2D drawing: x to the right, y up from the bottom edge.
+class RasterRenderer {
+    static final int BAND_ROWS = 16;  // Pixel rows per band task
+    private static final int CHUNK = 16384;  // Bodies per task while sorting into bands
+    private static final int LEVELS = 256;  // Colour map entries
+    private static final int QUAD_COLOUR = 0x808080;
+
+    public enum Mode {
+        POINT, SPLAT;
+
+        Mode next() {
+            return values()[(ordinal() + 1) % values().length];
+        }
+    }
+
+    public enum ColourMap {
+        DENSITY, VELOCITY;
+
+        ColourMap next() {
+            return values()[(ordinal() + 1) % values().length];
+        }
+    }
+
+    private static final int[] HEAT = palette(new int[]{0x000000, 0x1a237e, 0x42a5f5, 0xffffff});
+    private static final int[] SPEED = palette(new int[]{0x2040ff, 0x20e0e0, 0xffe020, 0xff3010});
+
+    private final ForkJoinPool pool;
+    private int[] pixels;
+    private float[] density = new float[0];
+    private float[] negative = new float[0];  // Density of negative radius bodies, drawn in red
+    private float[] speed = new float[0];  // Density-weighted speed sum
+    private int width;
+    private int height;
+    private int bands;
+
+    // Bodies sorted by band: band b's bodies are entries[bandStart[b]] up to bandStart[b + 1]
+    private int[] entries = new int[0];
+    private int[] bandStart = new int[1];
+    private int[][] chunkCounts = new int[0][];
+    private double meanSpeed;
+    private int[] quadRects = new int[0];  // Left, top, right and bottom pixel of each quad
+
+    RasterRenderer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Renders snapshot into image, which has to be TYPE_INT_RGB, with the outlines of the
+    // snapshot's quads behind the bodies if quads is set
+    void render(Snapshot snapshot, BufferedImage image, Mode mode, ColourMap colours, boolean quads) {
+        resize(image.getWidth(), image.getHeight());
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int n = snapshot.size;
+        boolean splat = mode == Mode.SPLAT;
+        sort(snapshot, n, splat);
+        int quadCount = quads ? snapshot.quadCount : 0;
+        placeQuads(snapshot, quadCount);
+        pool.invoke(new ParallelRange(b -> {
+            drawBand(snapshot, b, splat, colours);
+            drawQuads(quadCount, b);
+        }, 0, bands));
+    }
+
+    private void resize(int width, int height) {
+        if (this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        density = new float[width * height];
+        negative = new float[width * height];
+        speed = new float[width * height];
+        bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        bandStart = new int[bands + 1];
+    }
+
+    // Counting sort of the bodies into the bands they touch. Each chunk of bodies counts its
+    // own entries per band, so the scatter can run in parallel and still lay bodies out in
+    // index order within every band
+    private void sort(Snapshot s, int n, boolean splat) {
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        if (chunkCounts.length < chunks || (chunks > 0 && chunkCounts[0].length != bands)) {
+            chunkCounts = new int[Math.max(chunks, chunkCounts.length)][bands];
+        }
+        double[] speedSums = new double[chunks];
+        if (chunks > 0) {
+            pool.invoke(new ParallelRange(c -> {
+                int[] counts = chunkCounts[c];
+                Arrays.fill(counts, 0);
+                int to = Math.min(n, (c + 1) * CHUNK);
+                double sum = 0;
+                for (int i = c * CHUNK; i < to; i++) {
+                    int first = Math.max(0, firstRow(s, i, splat));
+                    int last = Math.min(height - 1, lastRow(s, i, splat));
+                    for (int b = first / BAND_ROWS; first <= last && b <= last / BAND_ROWS; b++) {
+                        counts[b]++;
+                    }
+                    sum += Math.sqrt(s.xVel[i] * s.xVel[i] + s.yVel[i] * s.yVel[i]);
+                }
+                speedSums[c] = sum;
+            }, 0, chunks));
+        }
+
+        // Turn the counts into where each chunk starts writing in each band
+        int total = 0;
+        double speedSum = 0;
+        for (int b = 0; b < bands; b++) {
+            bandStart[b] = total;
+            for (int c = 0; c < chunks; c++) {
+                int count = chunkCounts[c][b];
+                chunkCounts[c][b] = total;
+                total += count;
+            }
+        }
+        bandStart[bands] = total;
+        for (int c = 0; c < chunks; c++) {
+            speedSum += speedSums[c];
+        }
+        meanSpeed = n > 0 ? speedSum / n : 0;
+        if (entries.length < total) {
+            entries = new int[total + total / 4];
+        }
+
+        if (chunks > 0) {
+            pool.invoke(new ParallelRange(c -> {
+                int[] next = chunkCounts[c];
+                int to = Math.min(n, (c + 1) * CHUNK);
+                for (int i = c * CHUNK; i < to; i++) {
+                    int first = Math.max(0, firstRow(s, i, splat));
+                    int last = Math.min(height - 1, lastRow(s, i, splat));
+                    for (int b = first / BAND_ROWS; first <= last && b <= last / BAND_ROWS; b++) {
+                        entries[next[b]++] = i;
+                    }
+                }
+            }, 0, chunks));
+        }
+    }
+
+    // Pixel row of a body's centre; the screen's y axis points down
+    private int row(Snapshot s, int i) {
+        return (int) Math.floor(height - s.yPos[i]);
+    }
+
+    private int firstRow(Snapshot s, int i, boolean splat) {
+        return splat ? (int) Math.floor(height - s.yPos[i] - splatRadius(s, i)) : row(s, i);
+    }
+
+    private int lastRow(Snapshot s, int i, boolean splat) {
+        return splat ? (int) Math.floor(height - s.yPos[i] + splatRadius(s, i)) : row(s, i);
+    }
+
+    private static double splatRadius(Snapshot s, int i) {
+        return Math.max(1, Math.abs(s.radius[i]));
+    }
+
+    private void drawBand(Snapshot s, int band, boolean splat, ColourMap colours) {
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS);
+        int from = top * width;
+        int to = bottom * width;
+        Arrays.fill(density, from, to, 0);
+        Arrays.fill(negative, from, to, 0);
+        Arrays.fill(speed, from, to, 0);
+
+        for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+            int i = entries[k];
+            float[] into = s.radius[i] < 0 ? negative : density;
+            float v = (float) Math.sqrt(s.xVel[i] * s.xVel[i] + s.yVel[i] * s.yVel[i]);
+            if (!splat) {
+                int x = (int) Math.floor(s.xPos[i]);
+                if (x >= 0 && x < width) {
+                    int p = row(s, i) * width + x;
+                    into[p] += 1;
+                    speed[p] += v;
+                }
+                continue;
+            }
+            // Splat a disc whose weight falls off from 1 at the centre to 0 at its edge
+            double r = splatRadius(s, i);
+            double cx = s.xPos[i];
+            double cy = height - s.yPos[i];
+            int y0 = Math.max(top, (int) Math.floor(cy - r));
+            int y1 = Math.min(bottom - 1, (int) Math.floor(cy + r));
+            int x0 = Math.max(0, (int) Math.floor(cx - r));
+            int x1 = Math.min(width - 1, (int) Math.floor(cx + r));
+            double r2 = r * r;
+            for (int y = y0; y <= y1; y++) {
+                double dy = y + 0.5 - cy;
+                int rowStart = y * width;
+                for (int x = x0; x <= x1; x++) {
+                    double dx = x + 0.5 - cx;
+                    double d2 = dx * dx + dy * dy;
+                    if (d2 < r2) {
+                        float w = (float) (1 - d2 / r2);
+                        into[rowStart + x] += w;
+                        speed[rowStart + x] += w * v;
+                    }
+                }
+            }
+        }
+
+        double scale = meanSpeed > 0 ? meanSpeed : 1;
+        for (int p = from; p < to; p++) {
+            float d = density[p];
+            float neg = negative[p];
+            if (d == 0 && neg == 0) {
+                pixels[p] = 0;
+            } else if (neg > d) {
+                pixels[p] = shade(0xff0000, level(neg));
+            } else if (colours == ColourMap.DENSITY) {
+                pixels[p] = HEAT[level(d)];
+            } else {
+                double mean = speed[p] / d;
+                pixels[p] = shade(SPEED[(int) ((LEVELS - 1) * (mean / (mean + scale)))], level(d));
+            }
+        }
+    }
+
+    // Pixel rectangles of the snapshot's quads, so each band only compares ints
+    private void placeQuads(Snapshot s, int count) {
+        if (quadRects.length < 4 * count) {
+            quadRects = new int[8 * count];
+        }
+        for (int q = 0; q < count; q++) {
+            double half = s.quadLength[q] / 2;
+            quadRects[4 * q] = (int) Math.floor(s.quadX[q] - half);
+            quadRects[4 * q + 1] = (int) Math.floor(height - s.quadY[q] - half);
+            quadRects[4 * q + 2] = (int) Math.floor(s.quadX[q] + half);
+            quadRects[4 * q + 3] = (int) Math.floor(height - s.quadY[q] + half);
+        }
+    }
+
+    // Outlines every quad where it crosses the band, on pixels no body covers
+    private void drawQuads(int count, int band) {
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS) - 1;
+        for (int q = 0; q < count; q++) {
+            int y0 = quadRects[4 * q + 1];
+            int y1 = quadRects[4 * q + 3];
+            if (y1 < top || y0 > bottom) {
+                continue;
+            }
+            int x0 = quadRects[4 * q];
+            int x1 = quadRects[4 * q + 2];
+            if (y0 >= top) {
+                outlineRow(y0, x0, x1);
+            }
+            if (y1 <= bottom) {
+                outlineRow(y1, x0, x1);
+            }
+            for (int y = Math.max(top, y0 + 1); y <= Math.min(bottom, y1 - 1); y++) {
+                outlinePixel(y, x0);
+                outlinePixel(y, x1);
+            }
+        }
+    }
+
+    private void outlineRow(int y, int x0, int x1) {
+        int start = y * width;
+        for (int x = Math.max(0, x0); x <= Math.min(width - 1, x1); x++) {
+            if (pixels[start + x] == 0) {
+                pixels[start + x] = QUAD_COLOUR;
+            }
+        }
+    }
+
+    private void outlinePixel(int y, int x) {
+        if (x >= 0 && x < width && pixels[y * width + x] == 0) {
+            pixels[y * width + x] = QUAD_COLOUR;
+        }
+    }
+
+    // Colour map entry for a density: a lone body lands halfway up, crowds saturate
+    private static int level(float d) {
+        return (int) ((LEVELS - 1) * (d / (d + 1)));
+    }
+
+    // rgb scaled to brightness level out of LEVELS - 1
+    private static int shade(int rgb, int level) {
+        int r = (rgb >> 16 & 0xff) * level / (LEVELS - 1);
+        int g = (rgb >> 8 & 0xff) * level / (LEVELS - 1);
+        int b = (rgb & 0xff) * level / (LEVELS - 1);
+        return r << 16 | g << 8 | b;
+    }
+
+    // LEVELS colours blending evenly through stops
+    private static int[] palette(int[] stops) {
+        int[] colours = new int[LEVELS];
+        for (int k = 0; k < LEVELS; k++) {
+            double t = (double) k / (LEVELS - 1) * (stops.length - 1);
+            int s = Math.min(stops.length - 2, (int) t);
+            double f = t - s;
+            int rgb = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                int a = stops[s] >> shift & 0xff;
+                int b = stops[s + 1] >> shift & 0xff;
+                rgb |= (int) Math.round(a + f * (b - a)) << shift;
+            }
+            colours[k] = rgb;
+        }
+        return colours;
+    }
+}
@@ -0,0 +1,137 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+// Rasterizes the newest snapshot on its own thread, so drawing one frame overlaps the
+// simulation's next steps and the event thread only has to blit the result. Finished frames go
+// to the display through a triple buffer of images, the way SnapshotBuffer hands snapshots to
+// this stage: the renderer never waits for a paint, and a frame replaced before it was shown
+// counts as dropped.
+class RenderStage implements Runnable {
+    // One rendered image and the snapshot it came from
+    static class Frame {
+        BufferedImage image;
+        long step;
+        int size;
+    }
+
+    private final SnapshotBuffer snapshots;
+    private final RasterRenderer renderer;
+    private final StepMetrics metrics;
+    private final StageGauge gauge;
+    private final StageGauge display;  // The event thread's blits, fed by this stage
+    private Frame back = new Frame();
+    private Frame ready = new Frame();
+    private Frame front = new Frame();
+    private boolean fresh;
+
+    // Set from the event thread; a change redraws the last snapshot
+    private volatile int width = 1;
+    private volatile int height = 1;
+    private volatile RasterRenderer.Mode mode = RasterRenderer.Mode.SPLAT;
+    private volatile RasterRenderer.ColourMap colours = RasterRenderer.ColourMap.DENSITY;
+    private volatile boolean quads;
+    private volatile boolean changed;
+    private volatile boolean running = true;
+
+    RenderStage(SnapshotBuffer snapshots, ForkJoinPool pool, StepMetrics metrics) {
+        this.snapshots = snapshots;
+        this.metrics = metrics;
+        renderer = new RasterRenderer(pool);
+        gauge = metrics.stage("render", 1);
+        display = metrics.stage("display", 1);
+        snapshots.setGauge(gauge);
+    }
+
+    Thread start() {
+        Thread thread = new Thread(this, "render");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        Snapshot last = null;
+        while (running) {
+            Snapshot snapshot;
+            try {
+                snapshot = snapshots.awaitFresh(BHMain.FRAME_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (snapshot == null) {
+                if (!changed || last == null) {
+                    continue;
+                }
+                snapshot = last;  // Still ours: only the next acquire hands it back
+            }
+            changed = false;
+            last = snapshot;
+            gauge.begin();
+            long start = System.nanoTime();
+            Frame frame = back;
+            int w = width;
+            int h = height;
+            if (frame.image == null || frame.image.getWidth() != w || frame.image.getHeight() != h) {
+                frame.image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            }
+            renderer.render(snapshot, frame.image, mode, colours, quads);
+            frame.step = snapshot.step;
+            frame.size = snapshot.size;
+            publish();
+            metrics.record(StepMetrics.Phase.RENDER, System.nanoTime() - start);
+            gauge.end();
+        }
+    }
+
+    private synchronized void publish() {
+        Frame t = ready;
+        ready = back;
+        back = t;
+        if (fresh) {
+            display.dropped();
+        } else {
+            display.enqueued();
+        }
+        fresh = true;
+    }
+
+    // Latest rendered frame, for the event thread; it stays valid until the next call. Its
+    // image is null until the first frame is done
+    synchronized Frame acquire() {
+        if (fresh) {
+            Frame t = front;
+            front = ready;
+            ready = t;
+            fresh = false;
+            display.dequeued();
+        }
+        return front;
+    }
+
+    // Gauge the event thread reports its blits to
+    StageGauge displayGauge() {
+        return display;
+    }
+
+    void setSize(int width, int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        if (width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+            changed = true;
+        }
+    }
+
+    void setStyle(RasterRenderer.Mode mode, RasterRenderer.ColourMap colours, boolean quads) {
+        this.mode = mode;
+        this.colours = colours;
+        this.quads = quads;
+        changed = true;
+    }
+
+    void stop() {
+        running = false;
+    }
+}
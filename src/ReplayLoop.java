@@ -0,0 +1,120 @@
+import java.io.IOException;
+
+// Plays a recorded trajectory into a SnapshotBuffer on its own thread, standing in for
+// SimulationLoop when the viewer replays a run. At speed 1 frames go by at the pace the
+// simulation ran in real time with one step per frame; negative speeds play backwards. When
+// decoding can't keep up, frames in between are skipped rather than slowing playback down.
+public class ReplayLoop implements Runnable {
+    private final TrajectoryReader reader;
+    private final SnapshotBuffer snapshots;
+    private final double bodyRadius;
+    private final double framesPerSecond;  // At speed 1
+    private double position;  // Frame, with the fraction played towards the next
+    private double speed = 1;
+    private boolean paused;
+    private volatile int shown = -1;
+    private volatile boolean running = true;
+
+    public ReplayLoop(TrajectoryReader reader, SnapshotBuffer snapshots, double bodyRadius) {
+        this.reader = reader;
+        this.snapshots = snapshots;
+        this.bodyRadius = bodyRadius;
+        framesPerSecond = 1000.0 / (BHMain.DT * reader.getDecimation());
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "replay");
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        long last = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            int frame = advance((now - last) / 1e9);
+            last = now;
+            if (frame >= 0 && frame != shown) {
+                try {
+                    reader.read(frame);
+                } catch (IOException e) {
+                    System.err.println("Replay stopped: " + e.getMessage());
+                    return;
+                }
+                snapshots.back().capture(reader, frame, bodyRadius);
+                snapshots.publish();
+                shown = frame;
+            }
+            try {
+                Thread.sleep(BHMain.FRAME_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Moves the play position on by seconds of playback and returns the frame to show, or -1
+    // for an empty file. Playback pauses at either end
+    private synchronized int advance(double seconds) {
+        int frames = reader.getFrameCount();
+        if (frames == 0) {
+            return -1;
+        }
+        if (!paused) {
+            position += speed * seconds * framesPerSecond;
+            if (position <= 0 || position >= frames - 1) {
+                position = Math.max(0, Math.min(frames - 1, position));
+                paused = true;
+            }
+        }
+        return (int) position;
+    }
+
+    // Jumps to frame, keeping the play state
+    public synchronized void seek(int frame) {
+        position = Math.max(0, Math.min(reader.getFrameCount() - 1, frame));
+    }
+
+    // Steps by frames, pausing playback
+    public synchronized void stepBy(int frames) {
+        paused = true;
+        seek((int) position + frames);
+    }
+
+    public synchronized void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    public synchronized double getSpeed() {
+        return speed;
+    }
+
+    // Pauses or resumes; resuming at the end starts over from the other end
+    public synchronized void togglePause() {
+        paused = !paused;
+        int last = reader.getFrameCount() - 1;
+        if (!paused && speed > 0 && position >= last) {
+            position = 0;
+        } else if (!paused && speed < 0 && position <= 0) {
+            position = last;
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    // Frame on screen, or -1 before the first one
+    public int getShownFrame() {
+        return shown;
+    }
+
+    public int getFrameCount() {
+        return reader.getFrameCount();
+    }
+
+    public void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,404 @@
+import java.util.concurrent.ForkJoinPool;
+
+// Physics state and stepping, with no dependence on the display
+public class Simulation {
+    public static final boolean PARALLEL_BUILD = true;  // Morton order builder instead of inserting one body at a time
+    public static final boolean GROUP_WALK = true;  // One tree walk per group of nearby bodies instead of per body
+    public static final boolean INCREMENTAL_TREE = true;  // Refit the tree in place between full rebuilds
+    public static final boolean COLLISIONS = false;  // Whether touching bodies merge unless set otherwise
+    public static final Precision PRECISION = Precision.DOUBLE;  // Tree walk precision unless set otherwise
+    static final double ROOT_PADDING = 1.0001;  // Keeps the outermost bodies off the root's edges
+    private static final double REFIT_PADDING = 1.25;  // Room for bodies to drift before the root must grow
+    // A refitted tree is rebuilt once it has this many times the nodes of the last full build,
+    // leaves this many levels deeper, or this share of internal quads that could be leaves
+    private static final double MAX_NODE_GROWTH = 1.5;
+    private static final int MAX_DEPTH_GROWTH = 4;
+    private static final double MAX_UNDERFULL = 0.25;
+    private static final int REFIT_RETRY = 64;  // Rebuilds before trying refits again after one cost more than a build
+    static final double MIN_ROOT = 1E-6;  // Root side when every body sits on one point
+
+    // How forces are computed each step
+    public enum Solver {
+        BARNES_HUT, FMM;
+
+        // Accepts "bh" or "fmm" as given on the command line
+        static Solver parse(String name) {
+            switch (name) {
+                case "bh":
+                    return BARNES_HUT;
+                case "fmm":
+                    return FMM;
+                default:
+                    throw new IllegalArgumentException("Unknown solver " + name + ", expected bh or fmm");
+            }
+        }
+    }
+
+    // How bodies are moved each step
+    public enum Integrator {
+        EULER, LEAPFROG;
+
+        // Accepts "euler" or "leapfrog" as given on the command line
+        static Integrator parse(String name) {
+            switch (name) {
+                case "euler":
+                    return EULER;
+                case "leapfrog":
+                    return LEAPFROG;
+                default:
+                    throw new IllegalArgumentException("Unknown integrator " + name + ", expected euler or leapfrog");
+            }
+        }
+    }
+
+    // How the Barnes-Hut walk reads the tree and bodies. MIXED walks a float copy with positions
+    // relative to the root's middle, summing the forces in doubles; the bodies themselves are
+    // always integrated in doubles. FMM ignores it
+    public enum Precision {
+        DOUBLE, MIXED;
+
+        // Accepts "double" or "mixed" as given on the command line
+        static Precision parse(String name) {
+            switch (name) {
+                case "double":
+                    return DOUBLE;
+                case "mixed":
+                    return MIXED;
+                default:
+                    throw new IllegalArgumentException("Unknown precision " + name + ", expected double or mixed");
+            }
+        }
+    }
+
+    final BodyStore bodies;
+    final Quad root;
+    private final MortonBuilder builder;
+    private final ForkJoinPool forcePool;
+    private final FmmSolver fmm;  // Only set when the FMM solver was picked
+    private final BlockLeapfrog leapfrog;  // Only set when the leapfrog integrator was picked
+    private long steps;
+    private long bodySteps;  // Bodies stepped, summed over every step; merges shrink later steps
+    private long interactions;
+    private long rebuilds;
+    private volatile boolean rebuildTree;  // Set when a setting change invalidates the current tree
+    private int builtNodes;
+    private int builtDepth;
+    private long buildNanos;  // Time the last full build took
+    private int refitPause;  // Rebuilds left before refitting again
+    private int[] activeMark = new int[0];  // Bodies due a force evaluation, marked with activeStamp
+    private int activeStamp;
+    private final Collisions collisions;
+    // Root tasks of the bounds and force passes, run again every step so a step allocates none
+    private final PoolInvoker invoker;
+    private final BoundsTask boundsTask;
+    private final ForceTask forceTask;
+    private final GroupForceTask groupTask;
+    private final AccelerationTask accelerationTask;
+    private volatile boolean collide = COLLISIONS;  // Merge touching bodies after every step
+    private final StepMetrics metrics = new StepMetrics();
+    private long treeNanos;  // Spent in each phase during the current step
+    private long forceNanos;
+    private long collisionNanos;
+    private long nodeVisits;  // Quads reached by the current step's tree walks
+
+    public Simulation(BodyStore bodies, int threads) {
+        this(bodies, threads, Solver.BARNES_HUT, FmmSolver.DEFAULT_ORDER);
+    }
+
+    // Steps with the Euler integrator; the leapfrog has to be asked for
+    public Simulation(BodyStore bodies, int threads, Solver solver, int fmmOrder) {
+        this(bodies, threads, solver, fmmOrder, Integrator.EULER);
+    }
+
+    public Simulation(BodyStore bodies, int threads, Solver solver, int fmmOrder, Integrator integrator) {
+        this.bodies = bodies;
+        forcePool = new ForkJoinPool(threads);
+        root = new Quad(bodies);
+        builder = new MortonBuilder(bodies, forcePool);
+        fmm = solver == Solver.FMM ? new FmmSolver(bodies, root, forcePool, fmmOrder) : null;
+        // FMM evaluates every body at once, so it gains nothing from block steps
+        leapfrog = integrator == Integrator.LEAPFROG
+                ? new BlockLeapfrog(bodies, forcePool, this::updateTree, this::forces,
+                        fmm != null ? 0 : BlockLeapfrog.MAX_LEVEL)
+                : null;
+        collisions = new Collisions(bodies, root, forcePool);
+        invoker = new PoolInvoker(forcePool);
+        boundsTask = new BoundsTask(invoker, bodies);
+        forceTask = new ForceTask(invoker, bodies, root);
+        groupTask = new GroupForceTask(invoker, bodies, root);
+        accelerationTask = new AccelerationTask(invoker, bodies, root);
+        root.setMixedPrecision(PRECISION == Precision.MIXED);
+        buildBHTree();
+    }
+
+    // Steps every body against the tree built from the current positions, then swaps in the results
+    public void step() {
+        long start = System.nanoTime();
+        long before = interactions;
+        treeNanos = 0;
+        forceNanos = 0;
+        nodeVisits = 0;
+        bodySteps += bodies.size();
+        if (leapfrog != null) {
+            interactions += leapfrog.step();
+        } else {
+            long forceStart = System.nanoTime();
+            if (fmm != null) {
+                interactions += fmm.step();
+            } else if (GROUP_WALK && root.findGroups(Quad.GROUP_SIZE) == bodies.size()) {
+                GroupForceTask task = groupTask.range(0, root.groupCount);
+                invoker.invoke(task);
+                interactions += task.interactions;
+                nodeVisits += task.nodeVisits;
+            } else {
+                // Per body walk, which also reaches bodies the tree could not place
+                ForceTask task = forceTask.range(0, bodies.size());
+                invoker.invoke(task);
+                interactions += task.interactions;
+                nodeVisits += task.nodeVisits;
+            }
+            forceNanos += System.nanoTime() - forceStart;
+            bodies.swap();
+            updateTree();
+        }
+        steps++;
+
+        collisionNanos = 0;
+        if (collide) {
+            long collisionStart = System.nanoTime();
+            int removed = collisions.merge();
+            collisionNanos = System.nanoTime() - collisionStart;
+            if (removed > 0) {
+                // Body indices moved, so the tree can't be refitted
+                long treeStart = System.nanoTime();
+                buildBHTree();
+                treeNanos += System.nanoTime() - treeStart;
+            }
+        }
+
+        long total = System.nanoTime() - start;
+        metrics.record(StepMetrics.Phase.TREE, treeNanos);
+        metrics.record(StepMetrics.Phase.FORCES, forceNanos);
+        metrics.record(StepMetrics.Phase.COLLISIONS, collisionNanos);
+        metrics.record(StepMetrics.Phase.INTEGRATION, total - treeNanos - forceNanos - collisionNanos);
+        metrics.record(StepMetrics.Phase.STEP, total);
+        metrics.endStep(steps, nodeVisits, interactions - before, root.maxDepth, root.nodeCount, rebuilds);
+    }
+
+    // Timed force evaluation for the leapfrog
+    private long forces(int[] active, int count) {
+        long start = System.nanoTime();
+        long done = accelerations(active, count);
+        forceNanos += System.nanoTime() - start;
+        return done;
+    }
+
+    // Accelerations for the leapfrog: the first count bodies of active, or all of them when
+    // count is the body count
+    private long accelerations(int[] active, int count) {
+        int n = bodies.size();
+        if (fmm != null) {
+            long done = fmm.computeAccelerations();
+            System.arraycopy(fmm.xAcc, 0, bodies.xAcc, 0, n);
+            System.arraycopy(fmm.yAcc, 0, bodies.yAcc, 0, n);
+            return done;
+        }
+        AccelerationTask task;
+        if (!GROUP_WALK || root.findGroups(Quad.GROUP_SIZE) != n) {
+            task = accelerationTask.overBodies(active, 0, count);
+        } else if (count == n) {
+            task = accelerationTask.overGroups(null, 0, 0, root.groupCount);
+        } else {
+            // Walk once for each group with a body due, and only update those bodies
+            if (activeMark.length < n) {
+                activeMark = new int[bodies.xPos.length];
+            }
+            activeStamp++;
+            for (int k = 0; k < count; k++) {
+                activeMark[active[k]] = activeStamp;
+            }
+            task = accelerationTask.overGroups(activeMark, activeStamp, 0, root.groupCount);
+        }
+        invoker.invoke(task);
+        nodeVisits += task.nodeVisits;
+        return task.interactions;
+    }
+
+    void updateTree() {
+        long start = System.nanoTime();
+        refitOrRebuild();
+        treeNanos += System.nanoTime() - start;
+    }
+
+    // Refits the tree to the new positions, or rebuilds it if the refit fails or the tree has
+    // degraded too far. Refits pay off when few bodies change leaf; when one costs more than a
+    // full build, the next REFIT_RETRY steps rebuild instead
+    private void refitOrRebuild() {
+        if (INCREMENTAL_TREE && !rebuildTree && refitPause == 0) {
+            long start = System.nanoTime();
+            if (root.refit() != Quad.NONE
+                    && root.nodeCount <= MAX_NODE_GROWTH * builtNodes
+                    && root.maxDepth <= builtDepth + MAX_DEPTH_GROWTH
+                    && root.underfull <= MAX_UNDERFULL * (root.nodeCount - 1) / 4) {
+                if (System.nanoTime() - start > buildNanos) {
+                    refitPause = REFIT_RETRY;
+                }
+                return;
+            }
+        } else if (refitPause > 0) {
+            refitPause--;
+        }
+        rebuildTree = false;
+        buildBHTree();
+    }
+
+    // Builds the tree over a root square fitted to the bodies, so bodies that leave the window
+    // keep feeling and exerting forces
+    void buildBHTree() {
+        long start = System.nanoTime();
+        BoundsTask box = boundsTask.range(0, bodies.size());
+        invoker.invoke(box);
+        double xMid = BHMain.WIDTH / 2.0;
+        double yMid = BHMain.HEIGHT / 2.0;
+        double length = BHMain.WIDTH;
+        double side = Math.max(box.maxX - box.minX, box.maxY - box.minY);
+        if (!box.isEmpty() && Double.isFinite(side)) {
+            xMid = (box.minX + box.maxX) / 2;
+            yMid = (box.minY + box.maxY) / 2;
+            length = Math.max(side * (INCREMENTAL_TREE ? REFIT_PADDING : ROOT_PADDING), MIN_ROOT);
+        }
+
+        if (PARALLEL_BUILD) {
+            builder.build(root, xMid, yMid, length);
+        } else {
+            root.reset(xMid, yMid, length);
+            for (int i = 0; i < bodies.size(); i++) {
+                root.insert(i);
+            }
+            root.computeCentersOfMass();
+        }
+        root.measure();
+        builtNodes = root.nodeCount;
+        builtDepth = root.maxDepth;
+        buildNanos = System.nanoTime() - start;
+        rebuilds++;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    // Carries the step count over when resuming from a checkpoint
+    void setSteps(long steps) {
+        this.steps = steps;
+    }
+
+    // Body-node interactions summed over every step so far
+    public long getInteractions() {
+        return interactions;
+    }
+
+    // Full tree builds so far, including the first; the other steps refitted the tree
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    public void setTheta(double theta) {
+        root.setTheta(theta);
+    }
+
+    // Bodies per external quad, applied from the tree built at the end of the next step
+    public void setLeafSize(int leafSize) {
+        root.setLeafSize(leafSize);
+        rebuildTree = true;
+    }
+
+    // Call between steps
+    public void setPrecision(Precision precision) {
+        root.setMixedPrecision(precision == Precision.MIXED);
+    }
+
+    public Precision getPrecision() {
+        return root.isMixedPrecision() ? Precision.MIXED : Precision.DOUBLE;
+    }
+
+    // Whether touching bodies merge after every step. The body count then shrinks as they do
+    public void setCollisions(boolean collide) {
+        this.collide = collide;
+    }
+
+    // Bodies removed by merging so far
+    public long getMerged() {
+        return collisions.getMerged();
+    }
+
+    public Integrator getIntegrator() {
+        return leapfrog != null ? Integrator.LEAPFROG : Integrator.EULER;
+    }
+
+    // Bodies whose force was evaluated, summed over every step so far
+    public long getForceEvaluations() {
+        return leapfrog != null ? leapfrog.getForceEvaluations() : bodySteps;
+    }
+
+    // Bodies stepped, summed over every step so far, counting each body as it was at the start
+    // of the step; the count to divide by for per body per step figures
+    public long getBodySteps() {
+        return bodySteps;
+    }
+
+    // Force sub-steps summed over every step so far; the block leapfrog takes several per step
+    // when some bodies need shorter steps than DT
+    public long getSubSteps() {
+        return leapfrog != null ? leapfrog.getSubSteps() : steps;
+    }
+
+    // Total kinetic plus potential energy, summed directly over every pair, for checking how
+    // well an integrator conserves it. The potential of the softened force between two bodies
+    // is averaged over the softening of each, as each feels the other through its own
+    public double energy() {
+        int n = bodies.size();
+        if (n == 0) {
+            return 0;
+        }
+        double[] parts = new double[n];
+        forcePool.invoke(new ParallelRange(i -> {
+            double m = bodies.mass[i];
+            double e = 0.5 * m * (bodies.xVel[i] * bodies.xVel[i] + bodies.yVel[i] * bodies.yVel[i]);
+            double epsI = Body.DAMP * bodies.radius[i];
+            for (int j = i + 1; j < n; j++) {
+                double r = Math.hypot(bodies.xPos[j] - bodies.xPos[i], bodies.yPos[j] - bodies.yPos[i]);
+                double epsJ = Body.DAMP * bodies.radius[j];
+                e -= 0.5 * Body.G * m * bodies.mass[j] * (potential(r, epsI) + potential(r, epsJ));
+            }
+            parts[i] = e;
+        }, 0, n));
+        double total = 0;
+        for (double e : parts) {
+            total += e;
+        }
+        return total;
+    }
+
+    // Potential per unit mass product of the force G m M / (r^2 + eps^2), zero at infinity
+    private static double potential(double r, double eps) {
+        return (Math.PI / 2 - Math.atan(r / eps)) / eps;
+    }
+
+    // Phase timings and per-step counters, for publishing over JMX
+    public StepMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Solver getSolver() {
+        return fmm != null ? Solver.FMM : Solver.BARNES_HUT;
+    }
+
+    public int getThreads() {
+        return forcePool.getParallelism();
+    }
+
+    public void shutdown() {
+        forcePool.shutdown();
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Runs the physics on its own thread with a fixed timestep, publishing a snapshot after every
+// stepsPerFrame steps. In real time mode each batch is paced to DT of wall time, so the
+// simulation runs stepsPerFrame times faster than real time; otherwise the loop runs flat out.
+// Optionally writes a checkpoint every so many steps, between steps, and hands each step to a
+// trajectory recorder. This is the first stage of the frame pipeline: the render stage and the
+// recorder's writer work on what it hands them while it gets on with the next steps.
+public class SimulationLoop implements Runnable {
+    private final Simulation sim;
+    private final SnapshotBuffer snapshots;
+    private final StageGauge gauge;
+    private volatile boolean drawQuads;
+    private volatile int stepsPerFrame;
+    private volatile boolean realTime = true;
+    private volatile boolean running = true;
+    private volatile Path checkpoint;
+    private volatile int checkpointEvery;
+    private volatile TrajectoryRecorder recorder;
+
+    public SimulationLoop(Simulation sim, SnapshotBuffer snapshots, int stepsPerFrame, boolean drawQuads) {
+        this.sim = sim;
+        this.snapshots = snapshots;
+        this.stepsPerFrame = Math.max(1, stepsPerFrame);
+        this.drawQuads = drawQuads;
+        gauge = sim.getMetrics().stage("simulate", 0);
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "simulation");
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        snapshots.back().capture(sim, drawQuads);
+        snapshots.publish();
+        TrajectoryRecorder first = recorder;
+        if (first != null) {
+            first.record(sim.bodies, sim.getSteps());  // The starting positions, before any step
+        }
+        long next = System.nanoTime();
+        while (running) {
+            int steps = stepsPerFrame;
+            gauge.begin();
+            for (int i = 0; i < steps && running; i++) {
+                sim.step();
+                Path path = checkpoint;
+                if (path != null && sim.getSteps() % checkpointEvery == 0) {
+                    try {
+                        Checkpoint.write(path, sim.bodies, sim.getSteps());
+                    } catch (IOException e) {
+                        System.err.println("Checkpoint to " + path + " failed: " + e.getMessage());
+                    }
+                }
+                TrajectoryRecorder trajectory = recorder;
+                if (trajectory != null) {
+                    trajectory.record(sim.bodies, sim.getSteps());
+                }
+            }
+            snapshots.back().capture(sim, drawQuads);
+            snapshots.publish();
+            gauge.end();
+
+            if (realTime) {
+                next += BHMain.DT * 1_000_000L;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else {
+                    // Running behind: don't try to catch up on lost time
+                    next = System.nanoTime();
+                }
+            }
+        }
+        sim.shutdown();
+    }
+
+    public void setStepsPerFrame(int stepsPerFrame) {
+        this.stepsPerFrame = Math.max(1, stepsPerFrame);
+    }
+
+    // Writes a checkpoint to path after every steps steps, or stops checkpointing if path is null
+    public void setCheckpoint(Path path, int every) {
+        if (path != null && every < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1, got " + every);
+        }
+        checkpointEvery = every;
+        checkpoint = path;
+    }
+
+    // Passes the positions after every step to recorder, or stops recording if it is null. Set
+    // before start, the starting positions are recorded too. Closing the recorder is left to the
+    // caller
+    public void setRecorder(TrajectoryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    // Takes effect from the next step, or from the first if called before start
+    public void setCollisions(boolean collide) {
+        sim.setCollisions(collide);
+    }
+
+    // Whether snapshots carry the quads for the overlay
+    public void setDrawQuads(boolean drawQuads) {
+        this.drawQuads = drawQuads;
+    }
+
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    public void stop() {
+        running = false;
+    }
+}
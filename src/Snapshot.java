@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+// Copy of what the display needs from one simulation step. Snapshots are recycled through a
+// SnapshotBuffer, so the arrays only grow when the body or node count does.
+public class Snapshot {
+    double[] xPos = new double[0];
+    double[] yPos = new double[0];
+    double[] radius = new double[0];
+    double[] xVel = new double[0];
+    double[] yVel = new double[0];
+    int size;
+
+    // Quad bounds, only filled in when quads are drawn, and only down to quads
+    // BHMain.MIN_QUAD_PIXELS across
+    double[] quadX = new double[0];
+    double[] quadY = new double[0];
+    double[] quadLength = new double[0];
+    int quadCount;
+
+    long step;
+    private int[] stack = new int[64];
+
+    void capture(Simulation sim, boolean quads) {
+        BodyStore bodies = sim.bodies;
+        size = bodies.size();
+        if (xPos.length < size) {
+            xPos = new double[bodies.xPos.length];
+            yPos = new double[bodies.xPos.length];
+            radius = new double[bodies.xPos.length];
+            xVel = new double[bodies.xPos.length];
+            yVel = new double[bodies.xPos.length];
+        }
+        System.arraycopy(bodies.xPos, 0, xPos, 0, size);
+        System.arraycopy(bodies.yPos, 0, yPos, 0, size);
+        System.arraycopy(bodies.radius, 0, radius, 0, size);
+        System.arraycopy(bodies.xVel, 0, xVel, 0, size);
+        System.arraycopy(bodies.yVel, 0, yVel, 0, size);
+
+        quadCount = 0;
+        if (quads) {
+            captureQuads(sim.root);
+        }
+        step = sim.getSteps();
+    }
+
+    // Walks down from the root, stopping above quads too small to see; their parent already
+    // covers them on screen
+    private void captureQuads(Quad root) {
+        if (root.nodeCount == 0) {
+            return;
+        }
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int n = stack[--top];
+            if (quadCount == quadX.length) {
+                int capacity = Math.max(16, 2 * quadCount);
+                quadX = Arrays.copyOf(quadX, capacity);
+                quadY = Arrays.copyOf(quadY, capacity);
+                quadLength = Arrays.copyOf(quadLength, capacity);
+            }
+            quadX[quadCount] = root.xMid[n];
+            quadY[quadCount] = root.yMid[n];
+            quadLength[quadCount] = root.length[n];
+            quadCount++;
+            int c = root.child[n];
+            if (c != Quad.NONE && root.length[n] / 2 >= BHMain.MIN_QUAD_PIXELS) {
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                }
+                for (int k = 3; k >= 0; k--) {
+                    stack[top++] = c + k;
+                }
+            }
+        }
+    }
+
+    // Copies the frame the reader decoded last, drawing every body at radius. Trajectories
+    // hold no velocities or quads
+    void capture(TrajectoryReader reader, int frame, double bodyRadius) {
+        size = reader.size;
+        if (xPos.length < size) {
+            xPos = new double[size];
+            yPos = new double[size];
+            radius = new double[size];
+            xVel = new double[size];
+            yVel = new double[size];
+        }
+        System.arraycopy(reader.xPos, 0, xPos, 0, size);
+        System.arraycopy(reader.yPos, 0, yPos, 0, size);
+        Arrays.fill(radius, 0, size, bodyRadius);
+        Arrays.fill(xVel, 0, size, 0);
+        Arrays.fill(yVel, 0, size, 0);
+        quadCount = 0;
+        step = reader.getStep(frame);
+    }
+}
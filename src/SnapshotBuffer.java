@@ -0,0 +1,68 @@
+// Triple buffer between the simulation thread and the render stage. The simulation fills the
+// back snapshot and publishes it; the renderer takes whichever snapshot was published last.
+// Neither side ever waits for the other to finish with a snapshot. As a queue it holds at most
+// one snapshot, and a snapshot published over one that was never taken counts as dropped.
+public class SnapshotBuffer {
+    private Snapshot back = new Snapshot();
+    private Snapshot ready = new Snapshot();
+    private Snapshot front = new Snapshot();
+    private boolean fresh;
+    private StageGauge gauge;  // Of the stage that takes the snapshots, if any
+
+    // Snapshot the simulation may write into
+    Snapshot back() {
+        return back;
+    }
+
+    // Hands the back snapshot over to the renderer and returns the new back snapshot
+    synchronized Snapshot publish() {
+        Snapshot t = ready;
+        ready = back;
+        back = t;
+        if (gauge != null) {
+            if (fresh) {
+                gauge.dropped();
+            } else {
+                gauge.enqueued();
+            }
+        }
+        fresh = true;
+        notifyAll();
+        return back;
+    }
+
+    // Latest published snapshot; it stays valid until the next call
+    synchronized Snapshot acquire() {
+        if (fresh) {
+            Snapshot t = front;
+            front = ready;
+            ready = t;
+            fresh = false;
+            if (gauge != null) {
+                gauge.dequeued();
+            }
+        }
+        return front;
+    }
+
+    // As acquire, but waits up to millis for a snapshot newer than the last one taken first.
+    // Returns null if none came
+    synchronized Snapshot awaitFresh(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!fresh) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return null;
+            }
+            wait(wait);
+        }
+        return acquire();
+    }
+
+    synchronized void setGauge(StageGauge gauge) {
+        this.gauge = gauge;
+        if (fresh) {
+            gauge.enqueued();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// Occupancy of one stage of the frame pipeline: how many items waited in its input queue over
+// time, the most that waited at once, the share of the time the stage was busy, and how many
+// items it handled or dropped. The stage with the highest busy share is the one holding the
+// others back. Producers and the stage itself update it from their own threads.
+class StageGauge {
+    private final String name;
+    private final int capacity;  // Input queue size; 0 for the simulation, which has no input
+    private long since = System.nanoTime();  // Start of the measurement
+    private int depth;
+    private int maxDepth;
+    private long depthNanos;  // Queue depth integrated over time
+    private long changed = since;
+    private long busySince = -1;
+    private long busyNanos;
+    private long processed;
+    private long dropped;
+
+    StageGauge(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    String name() {
+        return name;
+    }
+
+    // An item joined the queue
+    synchronized void enqueued() {
+        settle(System.nanoTime());
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    // The stage took an item off the queue
+    synchronized void dequeued() {
+        settle(System.nanoTime());
+        depth = Math.max(0, depth - 1);
+    }
+
+    // An item was thrown away, either turned away at a full queue or replaced by a newer one
+    synchronized void dropped() {
+        dropped++;
+    }
+
+    // The stage started on an item
+    synchronized void begin() {
+        busySince = System.nanoTime();
+    }
+
+    // The stage finished the item it started on
+    synchronized void end() {
+        if (busySince >= 0) {
+            busyNanos += System.nanoTime() - busySince;
+            busySince = -1;
+        }
+        processed++;
+    }
+
+    private void settle(long now) {
+        depthNanos += depth * (now - changed);
+        changed = now;
+    }
+
+    synchronized StepMetrics.StageStats stats() {
+        long now = System.nanoTime();
+        settle(now);
+        long elapsed = Math.max(1, now - since);
+        long busy = busyNanos + (busySince >= 0 ? now - busySince : 0);
+        return new StepMetrics.StageStats(name, capacity, (double) depthNanos / elapsed, maxDepth,
+                Math.min(1, (double) busy / elapsed), processed, dropped);
+    }
+
+    // Starts measuring afresh; items in the queue stay counted
+    synchronized void reset() {
+        since = System.nanoTime();
+        changed = since;
+        maxDepth = depth;
+        depthNanos = 0;
+        busyNanos = 0;
+        if (busySince >= 0) {
+            busySince = since;
+        }
+        processed = 0;
+        dropped = 0;
+    }
+}
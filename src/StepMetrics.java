@@ -0,0 +1,425 @@
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Timings and counters for each step and frame, published over JMX as an MXBean. Every phase
+// keeps a latency histogram in nanoseconds, so the JMX view and the periodic log line can give
+// the median, the 99th percentile and the worst case, not just an average.
+//
+// The simulation thread records the step phases, the render thread the render phase and the
+// event thread the frame phase; readers may be on any thread. The frame pipeline's stages
+// (simulate, render, display, record) also report how full their input queues run and how busy
+// they are. Each histogram has a single writer, so its counts can be updated without locking.
+public class StepMetrics implements StepMetricsMXBean {
+    static final String OBJECT_NAME = "BHSimulation:type=StepMetrics";
+
+    public enum Phase {
+        TREE,  // Tree refits and rebuilds
+        FORCES,  // Tree walks or FMM passes; with Euler this includes moving the bodies
+        INTEGRATION,  // Kicks, drifts and buffer swaps outside the other phases
+        COLLISIONS,  // Finding and merging touching bodies; the rebuild after counts as tree
+        STEP,  // Whole step
+        RENDER,  // Rasterizing one frame on the render thread
+        FRAME  // Time between frames on screen
+    }
+
+    // Summary of one phase's histogram, in nanoseconds
+    public static class PhaseStats {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        @ConstructorProperties({"count", "meanNanos", "p50Nanos", "p99Nanos", "maxNanos"})
+        public PhaseStats(long count, long meanNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+    // Summary of one pipeline stage since the last reset: mean and largest input queue depth,
+    // share of the time it was busy, and items it handled or dropped
+    public static class StageStats {
+        private final String name;
+        private final int capacity;
+        private final double meanDepth;
+        private final int maxDepth;
+        private final double utilization;
+        private final long processed;
+        private final long dropped;
+
+        @ConstructorProperties({"name", "capacity", "meanDepth", "maxDepth", "utilization", "processed", "dropped"})
+        public StageStats(String name, int capacity, double meanDepth, int maxDepth, double utilization, long processed, long dropped) {
+            this.name = name;
+            this.capacity = capacity;
+            this.meanDepth = meanDepth;
+            this.maxDepth = maxDepth;
+            this.utilization = utilization;
+            this.processed = processed;
+            this.dropped = dropped;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public double getMeanDepth() {
+            return meanDepth;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public double getUtilization() {
+            return utilization;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    // Log-linear histogram: values below 2^SUB_BITS get a bucket each, and every power of two
+    // above is split into 2^SUB_BITS buckets, so a percentile is off by at most 1 / 2^SUB_BITS
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB + SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLong windowMax = new AtomicLong();  // Largest since the last log line
+
+        void record(long nanos) {
+            long v = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            if (v > max.get()) {
+                max.set(v);
+            }
+            if (v > windowMax.get()) {
+                windowMax.set(v);
+            }
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) {
+                return (int) v;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB - 1);
+            return (exponent - SUB_BITS + 1) * SUB + sub;
+        }
+
+        // Largest value that falls in bucket b
+        static long upperBound(int b) {
+            if (b < SUB) {
+                return b;
+            }
+            int exponent = b / SUB + SUB_BITS - 1;
+            long sub = b % SUB;
+            return ((SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        long[] counts() {
+            long[] copy = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                copy[b] = counts.get(b);
+            }
+            return copy;
+        }
+
+        // Upper bound of the bucket holding the q-th quantile of counts, clamped to max
+        static long percentile(long[] counts, double q, long max) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(upperBound(b), max);
+                }
+            }
+            return max;
+        }
+
+        PhaseStats stats() {
+            long n = count.get();
+            long[] c = counts();
+            long m = max.get();
+            return new PhaseStats(n, n > 0 ? sum.get() / n : 0, percentile(c, 0.5, m), percentile(c, 0.99, m), m);
+        }
+
+        void reset() {
+            for (int b = 0; b < BUCKETS; b++) {
+                counts.set(b, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+            windowMax.set(0);
+        }
+    }
+
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+    private final long[][] logged = new long[Phase.values().length][];  // Counts at the last log line
+    private final List<StageGauge> stages = new CopyOnWriteArrayList<>();
+    private volatile long steps;
+    private volatile long lastNodeVisits;
+    private volatile long lastInteractions;
+    private volatile int treeDepth;
+    private volatile int treeNodes;
+    private volatile long rebuilds;
+    private final AtomicLong totalNodeVisits = new AtomicLong();
+    private final AtomicLong totalInteractions = new AtomicLong();
+
+    public StepMetrics() {
+        for (int p = 0; p < histograms.length; p++) {
+            histograms[p] = new Histogram();
+            logged[p] = new long[Histogram.BUCKETS];
+        }
+    }
+
+    void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    // Counters for the step that just ended
+    void endStep(long steps, long nodeVisits, long interactions, int depth, int nodes, long rebuilds) {
+        this.lastNodeVisits = nodeVisits;
+        this.lastInteractions = interactions;
+        this.treeDepth = depth;
+        this.treeNodes = nodes;
+        this.rebuilds = rebuilds;
+        totalNodeVisits.addAndGet(nodeVisits);
+        totalInteractions.addAndGet(interactions);
+        this.steps = steps;
+    }
+
+    // Gauge for the pipeline stage called name, made on first use. capacity is the size of the
+    // stage's input queue
+    synchronized StageGauge stage(String name, int capacity) {
+        for (StageGauge gauge : stages) {
+            if (gauge.name().equals(name)) {
+                return gauge;
+            }
+        }
+        StageGauge gauge = new StageGauge(name, capacity);
+        stages.add(gauge);
+        return gauge;
+    }
+
+    // Registers with the platform MBean server under OBJECT_NAME, replacing whatever was there
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Could not publish metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    // One line on every phase since the previous call, for logging every so often
+    synchronized String logLine() {
+        StringBuilder line = new StringBuilder(String.format("step %d", steps));
+        for (Phase phase : Phase.values()) {
+            Histogram h = histograms[phase.ordinal()];
+            long[] now = h.counts();
+            long[] window = new long[now.length];
+            long n = 0;
+            for (int b = 0; b < now.length; b++) {
+                window[b] = Math.max(0, now[b] - logged[phase.ordinal()][b]);
+                n += window[b];
+            }
+            logged[phase.ordinal()] = now;
+            long max = h.windowMax.getAndSet(0);
+            if (n > 0) {
+                line.append(String.format(" | %s x%d p50 %.2f p99 %.2f max %.2f ms", phase.name().toLowerCase(), n,
+                        Histogram.percentile(window, 0.5, max) / 1e6, Histogram.percentile(window, 0.99, max) / 1e6, max / 1e6));
+            }
+        }
+        line.append(String.format(" | visits %d, interactions %d, depth %d, nodes %d",
+                lastNodeVisits, lastInteractions, treeDepth, treeNodes));
+        StageStats[] stats = getStages();
+        if (stats.length > 0) {
+            line.append(" | stages");
+            for (StageStats stage : stats) {
+                line.append(String.format(" %s busy %.0f%%", stage.getName(), 100 * stage.getUtilization()));
+                if (stage.getCapacity() > 0) {
+                    line.append(String.format(" queue %.2f/%d", stage.getMeanDepth(), stage.getCapacity()));
+                }
+                if (stage.getDropped() > 0) {
+                    line.append(String.format(" dropped %d", stage.getDropped()));
+                }
+            }
+            line.append(", limited by ").append(getBottleneck());
+        }
+        return line.toString();
+    }
+
+    @Override
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public PhaseStats getTree() {
+        return histograms[Phase.TREE.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getForces() {
+        return histograms[Phase.FORCES.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getIntegration() {
+        return histograms[Phase.INTEGRATION.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getCollisions() {
+        return histograms[Phase.COLLISIONS.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getStep() {
+        return histograms[Phase.STEP.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getRender() {
+        return histograms[Phase.RENDER.ordinal()].stats();
+    }
+
+    @Override
+    public PhaseStats getFrame() {
+        return histograms[Phase.FRAME.ordinal()].stats();
+    }
+
+    // From the mean time between frames since the last reset
+    @Override
+    public double getFramesPerSecond() {
+        PhaseStats frame = getFrame();
+        return frame.getMeanNanos() > 0 ? 1e9 / frame.getMeanNanos() : 0;
+    }
+
+    @Override
+    public long getLastNodeVisits() {
+        return lastNodeVisits;
+    }
+
+    @Override
+    public long getLastInteractions() {
+        return lastInteractions;
+    }
+
+    @Override
+    public int getTreeDepth() {
+        return treeDepth;
+    }
+
+    @Override
+    public int getTreeNodes() {
+        return treeNodes;
+    }
+
+    @Override
+    public long getTotalNodeVisits() {
+        return totalNodeVisits.get();
+    }
+
+    @Override
+    public long getTotalInteractions() {
+        return totalInteractions.get();
+    }
+
+    @Override
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public StageStats[] getStages() {
+        StageStats[] stats = new StageStats[stages.size()];
+        for (int k = 0; k < stats.length; k++) {
+            stats[k] = stages.get(k).stats();
+        }
+        return stats;
+    }
+
+    // The busiest stage, which the others end up waiting for
+    @Override
+    public String getBottleneck() {
+        StageStats busiest = null;
+        for (StageStats stage : getStages()) {
+            if (busiest == null || stage.getUtilization() > busiest.getUtilization()) {
+                busiest = stage;
+            }
+        }
+        return busiest != null ? busiest.getName() : "";
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int p = 0; p < histograms.length; p++) {
+            histograms[p].reset();
+            logged[p] = new long[Histogram.BUCKETS];
+        }
+        for (StageGauge gauge : stages) {
+            gauge.reset();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+// What StepMetrics publishes over JMX. Phase timings are in nanoseconds
+public interface StepMetricsMXBean {
+    long getSteps();
+
+    StepMetrics.PhaseStats getTree();
+
+    StepMetrics.PhaseStats getForces();
+
+    StepMetrics.PhaseStats getIntegration();
+
+    StepMetrics.PhaseStats getCollisions();
+
+    StepMetrics.PhaseStats getStep();
+
+    StepMetrics.PhaseStats getRender();
+
+    StepMetrics.PhaseStats getFrame();
+
+    double getFramesPerSecond();
+
+    long getLastNodeVisits();
+
+    long getLastInteractions();
+
+    int getTreeDepth();
+
+    int getTreeNodes();
+
+    long getTotalNodeVisits();
+
+    long getTotalInteractions();
+
+    long getRebuilds();
+
+    // Input queue occupancy and busy share of each stage of the frame pipeline
+    StepMetrics.StageStats[] getStages();
+
+    // Name of the busiest stage
+    String getBottleneck();
+
+    // Empties every histogram and restarts the stage figures; counters keep running
+    void reset();
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Reads frames back from a file written by TrajectoryRecorder. The file is memory-mapped, so
+// only the frame being decoded is copied onto the heap and the operating system pages the rest
+// in and out; files past 2 GB are mapped in several segments, each holding whole frames.
+//
+// Opening the file reads just the frame headers to index where each frame starts. A cut-off
+// last frame, from a recording that never closed, is left out.
+public class TrajectoryReader implements AutoCloseable {
+    private static final long MAX_SEGMENT = Integer.MAX_VALUE;  // Largest single mapping
+
+    private final FileChannel channel;
+    private final TrajectoryRecorder.Encoding encoding;
+    private final int decimation;
+
+    // Frame index
+    private int frames;
+    private long[] offset = new long[16];  // Where the frame's header starts
+    private long[] step = new long[16];
+    private int[] count = new int[16];
+    private int[] kind = new int[16];
+    private int[] keyOf = new int[16];  // Latest KEY frame at or before this one
+    private int[] segmentOf = new int[16];
+
+    private long[] segmentStart = new long[4];
+    private long[] segmentEnd = new long[4];
+    private MappedByteBuffer[] segments = new MappedByteBuffer[4];
+    private int segmentCount;
+
+    // Positions of the frame decoded last
+    double[] xPos = new double[0];
+    double[] yPos = new double[0];
+    int size;
+    private int current = -1;
+    private float[] scratch = new float[0];
+
+    public TrajectoryReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (length < TrajectoryRecorder.HEADER_BYTES || !readFully(header, 0)) {
+                throw new IOException(path + " is too short to be a trajectory");
+            }
+            if (header.getInt() != TrajectoryRecorder.MAGIC) {
+                throw new IOException(path + " is not a trajectory");
+            }
+            int version = header.getInt();
+            if (version != TrajectoryRecorder.VERSION) {
+                throw new IOException(path + " has trajectory version " + version + ", expected " + TrajectoryRecorder.VERSION);
+            }
+            int ordinal = header.getInt();
+            if (ordinal < 0 || ordinal >= TrajectoryRecorder.Encoding.values().length) {
+                throw new IOException(path + " has unknown encoding " + ordinal);
+            }
+            encoding = TrajectoryRecorder.Encoding.values()[ordinal];
+            decimation = header.getInt();
+            index(length);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void index(long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long at = TrajectoryRecorder.HEADER_BYTES;
+        int key = -1;
+        while (at + TrajectoryRecorder.FRAME_HEADER_BYTES <= length) {
+            header.clear();
+            if (!readFully(header, at)) {
+                break;
+            }
+            long frameStep = header.getLong();
+            int n = header.getInt();
+            int frameKind = header.getInt();
+            if (n < 0 || frameKind < TrajectoryRecorder.KEY || frameKind > TrajectoryRecorder.DELTA) {
+                throw new IOException("Bad frame header at byte " + at);
+            }
+            long bytes = TrajectoryRecorder.FRAME_HEADER_BYTES
+                    + 2L * n * (frameKind == TrajectoryRecorder.KEY ? Double.BYTES : Float.BYTES);
+            if (at + bytes > length) {
+                break;
+            }
+            if (frameKind == TrajectoryRecorder.KEY) {
+                key = frames;
+            } else if (frameKind == TrajectoryRecorder.DELTA && (key < 0 || count[key] != n)) {
+                throw new IOException("Delta frame at byte " + at + " has no keyframe to start from");
+            }
+            addFrame(at, frameStep, n, frameKind, key, addToSegment(at, bytes));
+            at += bytes;
+        }
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    // Segment for a frame of bytes starting at at, opening a new one if the last is full
+    private int addToSegment(long at, long bytes) throws IOException {
+        if (bytes > MAX_SEGMENT) {
+            throw new IOException("Frame at byte " + at + " is too large to map");
+        }
+        if (segmentCount == 0 || at + bytes - segmentStart[segmentCount - 1] > MAX_SEGMENT) {
+            if (segmentCount == segmentStart.length) {
+                segmentStart = Arrays.copyOf(segmentStart, 2 * segmentCount);
+                segmentEnd = Arrays.copyOf(segmentEnd, 2 * segmentCount);
+                segments = Arrays.copyOf(segments, 2 * segmentCount);
+            }
+            segmentStart[segmentCount++] = at;
+        }
+        segmentEnd[segmentCount - 1] = at + bytes;
+        return segmentCount - 1;
+    }
+
+    private void addFrame(long at, long frameStep, int n, int frameKind, int key, int segment) {
+        if (frames == offset.length) {
+            int capacity = 2 * frames;
+            offset = Arrays.copyOf(offset, capacity);
+            step = Arrays.copyOf(step, capacity);
+            count = Arrays.copyOf(count, capacity);
+            kind = Arrays.copyOf(kind, capacity);
+            keyOf = Arrays.copyOf(keyOf, capacity);
+            segmentOf = Arrays.copyOf(segmentOf, capacity);
+        }
+        offset[frames] = at;
+        step[frames] = frameStep;
+        count[frames] = n;
+        kind[frames] = frameKind;
+        keyOf[frames] = key;
+        segmentOf[frames] = segment;
+        frames++;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    // Simulation step frame f was recorded at
+    public long getStep(int f) {
+        return step[f];
+    }
+
+    public int getBodyCount(int f) {
+        return count[f];
+    }
+
+    public TrajectoryRecorder.Encoding getEncoding() {
+        return encoding;
+    }
+
+    public int getDecimation() {
+        return decimation;
+    }
+
+    // Decodes frame f into xPos and yPos. Moving forward through delta frames applies just the
+    // frames in between; going back, or past a keyframe, starts again from the keyframe
+    public void read(int f) throws IOException {
+        if (f < 0 || f >= frames) {
+            throw new IndexOutOfBoundsException("Frame " + f + " of " + frames);
+        }
+        if (f == current) {
+            return;
+        }
+        int from = f;
+        if (kind[f] == TrajectoryRecorder.DELTA) {
+            from = current >= keyOf[f] && current < f ? current + 1 : keyOf[f];
+        }
+        current = -1;  // Left undefined if a mapping fails part way
+        for (int g = from; g <= f; g++) {
+            decode(g);
+        }
+        current = f;
+    }
+
+    private void decode(int f) throws IOException {
+        int n = count[f];
+        if (xPos.length < n) {
+            xPos = new double[n];
+            yPos = new double[n];
+        }
+        ByteBuffer frame = segment(segmentOf[f]).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        frame.position((int) (offset[f] - segmentStart[segmentOf[f]]) + TrajectoryRecorder.FRAME_HEADER_BYTES);
+        if (kind[f] == TrajectoryRecorder.KEY) {
+            frame.asDoubleBuffer().get(xPos, 0, n).get(yPos, 0, n);
+        } else {
+            if (scratch.length < n) {
+                scratch = new float[n];
+            }
+            FloatBuffer values = frame.asFloatBuffer();
+            boolean delta = kind[f] == TrajectoryRecorder.DELTA;
+            fromFloats(values, xPos, n, delta);
+            fromFloats(values, yPos, n, delta);
+        }
+        size = n;
+    }
+
+    private void fromFloats(FloatBuffer values, double[] into, int n, boolean delta) {
+        values.get(scratch, 0, n);
+        if (delta) {
+            for (int i = 0; i < n; i++) {
+                into[i] += scratch[i];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                into[i] = scratch[i];
+            }
+        }
+    }
+
+    // Maps segment s the first time it is needed; the mapping lasts until the reader is dropped
+    private MappedByteBuffer segment(int s) throws IOException {
+        if (segments[s] == null) {
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart[s], segmentEnd[s] - segmentStart[s]);
+        }
+        return segments[s];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
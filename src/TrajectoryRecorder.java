@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records body positions to a file without stalling the step thread. record() copies the
+// positions into a pooled frame and hands it to a background writer over a bounded queue;
+// when the writer falls behind, frames are either dropped or the step thread waits, as set
+// by the policy.
+//
+// File layout, little-endian:
+//   int MAGIC ("BHTR" read as bytes), int VERSION, int encoding ordinal, int decimation
+//   then per frame: long step, int body count n, int frame kind, then n x values followed by
+//   n y values, as doubles (KEY) or floats (FLOAT and DELTA)
+// DELTA frames hold the change since the previous frame as the reader rebuilds it, so rounding
+// doesn't build up; every KEYFRAME_EVERY frames, and whenever the body count changes, a KEY
+// frame of doubles starts again.
+public class TrajectoryRecorder implements AutoCloseable {
+    static final int MAGIC = 0x52544842;  // "BHTR" in little-endian byte order
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int FRAME_HEADER_BYTES = 16;
+    static final int KEYFRAME_EVERY = 64;
+
+    // Frame kinds
+    static final int KEY = 0;
+    static final int FLOAT = 1;
+    static final int DELTA = 2;
+
+    public enum Encoding {
+        DOUBLE, FLOAT, DELTA;
+
+        static Encoding parse(String name) {
+            switch (name) {
+                case "double":
+                    return DOUBLE;
+                case "float":
+                    return FLOAT;
+                case "delta":
+                    return DELTA;
+                default:
+                    throw new IllegalArgumentException("Unknown encoding " + name + ", expected double, float or delta");
+            }
+        }
+    }
+
+    // What record() does when every pooled frame is waiting to be written
+    public enum Policy {
+        DROP, BLOCK;
+
+        static Policy parse(String name) {
+            switch (name) {
+                case "drop":
+                    return DROP;
+                case "block":
+                    return BLOCK;
+                default:
+                    throw new IllegalArgumentException("Unknown policy " + name + ", expected drop or block");
+            }
+        }
+    }
+
+    private static class Frame {
+        double[] xPos = new double[0];
+        double[] yPos = new double[0];
+        int size;
+        long step;
+    }
+
+    private static final Frame END = new Frame();  // Tells the writer to finish
+
+    private final FileChannel channel;
+    private final Encoding encoding;
+    private final Policy policy;
+    private final int decimation;
+    private final BlockingQueue<Frame> pending;
+    private final BlockingQueue<Frame> free;
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // Writer state
+    private ByteBuffer out = ByteBuffer.allocateDirect(0);
+    private double[] lastX = new double[0];  // Previous frame as a reader rebuilds it
+    private double[] lastY = new double[0];
+    private int lastSize = -1;
+    private float[] scratch = new float[0];
+    private int sinceKey;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile int maxQueueDepth;
+    private volatile StageGauge gauge;  // Where the writer reports as a pipeline stage, if anywhere
+
+    // Records every decimation-th step. queueCapacity frames can wait for the writer at once
+    public TrajectoryRecorder(Path path, int decimation, Encoding encoding, Policy policy, int queueCapacity)
+            throws IOException {
+        if (decimation < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Decimation and queue capacity must be at least 1");
+        }
+        this.encoding = encoding;
+        this.policy = policy;
+        this.decimation = decimation;
+        pending = new ArrayBlockingQueue<>(queueCapacity + 1);  // Room for END when full
+        free = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            free.add(new Frame());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(decimation).flip();
+        write(header);
+        writer = new Thread(this::drain, "trajectory writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Called on the step thread after a step. Copies the positions if this step is recorded
+    public void record(BodyStore bodies, long step) {
+        if (closed || step % decimation != 0) {
+            return;
+        }
+        Frame frame = free.poll();
+        if (frame == null) {
+            if (policy == Policy.DROP) {
+                framesDropped.incrementAndGet();
+                StageGauge stage = gauge;
+                if (stage != null) {
+                    stage.dropped();
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                frame = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+        int n = bodies.size();
+        if (frame.xPos.length < n) {
+            frame.xPos = new double[bodies.xPos.length];
+            frame.yPos = new double[bodies.xPos.length];
+        }
+        System.arraycopy(bodies.xPos, 0, frame.xPos, 0, n);
+        System.arraycopy(bodies.yPos, 0, frame.yPos, 0, n);
+        frame.size = n;
+        frame.step = step;
+        StageGauge stage = gauge;
+        if (stage != null) {
+            stage.enqueued();
+        }
+        pending.add(frame);
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Frame frame = pending.take();
+                if (frame == END) {
+                    return;
+                }
+                StageGauge stage = gauge;
+                if (stage != null) {
+                    stage.dequeued();
+                    stage.begin();
+                }
+                try {
+                    if (failure == null) {
+                        writeFrame(frame);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                if (stage != null) {
+                    stage.end();
+                }
+                free.add(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        int n = frame.size;
+        int kind;
+        if (encoding == Encoding.DOUBLE) {
+            kind = KEY;
+        } else if (encoding == Encoding.FLOAT) {
+            kind = FLOAT;
+        } else {
+            kind = n != lastSize || sinceKey >= KEYFRAME_EVERY ? KEY : DELTA;
+        }
+        int bytes = FRAME_HEADER_BYTES + 2 * n * (kind == KEY ? Double.BYTES : Float.BYTES);
+        if (out.capacity() < bytes) {
+            out = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        out.clear();
+        out.putLong(frame.step).putInt(n).putInt(kind);
+        if (kind == KEY) {
+            DoubleBuffer values = out.asDoubleBuffer();
+            values.put(frame.xPos, 0, n).put(frame.yPos, 0, n);
+        } else {
+            if (scratch.length < n) {
+                scratch = new float[frame.xPos.length];
+            }
+            FloatBuffer values = out.asFloatBuffer();
+            values.put(toFloats(frame.xPos, lastX, n, kind == DELTA), 0, n);
+            values.put(toFloats(frame.yPos, lastY, n, kind == DELTA), 0, n);
+        }
+        out.position(bytes);
+        if (encoding == Encoding.DELTA) {
+            if (kind == KEY) {
+                if (lastX.length < n) {
+                    lastX = new double[frame.xPos.length];
+                    lastY = new double[frame.xPos.length];
+                }
+                System.arraycopy(frame.xPos, 0, lastX, 0, n);
+                System.arraycopy(frame.yPos, 0, lastY, 0, n);
+                lastSize = n;
+                sinceKey = 0;
+            }
+            sinceKey++;
+        }
+        out.flip();
+        write(out);
+        framesWritten.incrementAndGet();
+    }
+
+    // Rounds values to floats in scratch, or with delta, their change since last, which then
+    // moves on by the rounded change just as it will for the reader
+    private float[] toFloats(double[] values, double[] last, int n, boolean delta) {
+        if (!delta) {
+            for (int i = 0; i < n; i++) {
+                scratch[i] = (float) values[i];
+            }
+            return scratch;
+        }
+        for (int i = 0; i < n; i++) {
+            float d = (float) (values[i] - last[i]);
+            scratch[i] = d;
+            last[i] += d;
+        }
+        return scratch;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        bytesWritten.addAndGet(bytes);
+    }
+
+    // Writes out every queued frame and closes the file. Rethrows the first write error
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    // Reports the writer's queue and busy time to gauge from now on
+    public void setGauge(StageGauge gauge) {
+        this.gauge = gauge;
+    }
+
+    // Time the step thread spent waiting for a free frame under the BLOCK policy
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    // Frames waiting for the writer right now
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+}